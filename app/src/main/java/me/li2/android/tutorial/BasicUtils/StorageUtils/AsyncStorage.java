@@ -0,0 +1,286 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
+
+/**
+ * Run {@link StorageInterface} operations on a small pool of I/O threads, results are returned as
+ * {@link Future} and optionally delivered to a {@link Callback} on the main thread.
+ * Writes to the same file are coalesced: a pending write is replaced, and read back, by the newer content.
+ */
+
+public class AsyncStorage {
+    private static final String TAG = makeLogTag(AsyncStorage.class);
+    private static final int IO_THREAD_COUNT = 2;
+    private static final long IO_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private final StorageInterface mStorage;
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // path -> the write waiting to run or running, guarded by itself.
+    private final Map<String, PendingWrite> mPendingWrites = new HashMap<>();
+
+    public AsyncStorage(StorageInterface storage) {
+        mStorage = storage;
+        mExecutor = new ThreadPoolExecutor(IO_THREAD_COUNT, IO_THREAD_COUNT,
+                IO_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new IoThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public Future<String> readTextFile(final String directoryName, final String fileName, Callback<String> callback) {
+        String pending;
+        synchronized (mPendingWrites) {
+            PendingWrite pendingWrite = mPendingWrites.get(buildKey(directoryName, fileName));
+            pending = pendingWrite != null ? pendingWrite.mContent : null;
+        }
+        if (pending != null) {
+            return deliverNow(stripLineSeparators(pending), callback);
+        }
+
+        return submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return mStorage.readTextFile(directoryName, fileName);
+            }
+        }, callback);
+    }
+
+    public Future<String> readTextFile(String fileName, Callback<String> callback) {
+        return readTextFile("", fileName, callback);
+    }
+
+    public Future<Boolean> isFileExist(final String directoryName, final String fileName, Callback<Boolean> callback) {
+        return submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return mStorage.isFileExist(directoryName, fileName);
+            }
+        }, callback);
+    }
+
+    public Future<Boolean> isFileExist(String fileName, Callback<Boolean> callback) {
+        return isFileExist("", fileName, callback);
+    }
+
+    public Future<File> createFile(final String directoryName, final String fileName, Callback<File> callback) {
+        return submit(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return mStorage.createFile(directoryName, fileName);
+            }
+        }, callback);
+    }
+
+    public Future<File> createFile(String fileName, Callback<File> callback) {
+        return createFile("", fileName, callback);
+    }
+
+    public Future<Void> copyRawToFile(final int rawId, final String directoryName, final String fileName,
+                                      Callback<Void> callback) {
+        return submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                mStorage.copyRawToFile(rawId, directoryName, fileName);
+                return null;
+            }
+        }, callback);
+    }
+
+    public Future<Void> copyRawToFile(int rawId, String fileName, Callback<Void> callback) {
+        return copyRawToFile(rawId, "", fileName, callback);
+    }
+
+    /**
+     * Write content to file in background. If a write to the same file is still pending,
+     * its content is replaced and no new write is scheduled.
+     *
+     * @return done when content, or a later content of the same file, is written.
+     * {@link StorageInterface#writeFile(String, String, String)} logs its I/O errors instead of throwing them,
+     * so the future is done and the callbacks are called even if the write failed.
+     */
+    public Future<Void> writeFile(final String directoryName, final String fileName, String content,
+                                  Callback<Void> callback) {
+        final String key = buildKey(directoryName, fileName);
+        synchronized (mPendingWrites) {
+            PendingWrite scheduled = mPendingWrites.get(key);
+            if (scheduled != null) {
+                // the scheduled write will pick up the latest content
+                scheduled.mContent = content;
+                scheduled.addCallback(callback);
+                return scheduled.mFuture;
+            }
+
+            final PendingWrite pending = new PendingWrite(content);
+            pending.addCallback(callback);
+            pending.mFuture = mExecutor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    boolean written = false;
+                    try {
+                        String latest;
+                        do {
+                            synchronized (mPendingWrites) {
+                                latest = pending.mContent;
+                            }
+                            mStorage.writeFile(directoryName, fileName, latest);
+                            // content may be replaced while writing, write again until it's the latest.
+                        } while (!finishWrite(key, pending, latest));
+                        written = true;
+                    } finally {
+                        if (!written) {
+                            // a RuntimeException of the storage, otherwise every later write to the file
+                            // would only update this dead entry
+                            synchronized (mPendingWrites) {
+                                mPendingWrites.remove(key);
+                            }
+                        }
+                    }
+                    for (Callback<Void> callback : pending.mCallbacks) {
+                        deliver(null, callback);
+                    }
+                    return null;
+                }
+            });
+            mPendingWrites.put(key, pending);
+            return pending.mFuture;
+        }
+    }
+
+    public Future<Void> writeFile(String fileName, String content, Callback<Void> callback) {
+        return writeFile("", fileName, content, callback);
+    }
+
+    public Future<Void> writeFile(String directoryName, String fileName, String content) {
+        return writeFile(directoryName, fileName, content, null);
+    }
+
+    public Future<Void> writeFile(String fileName, String content) {
+        return writeFile("", fileName, content, null);
+    }
+
+    // @return true and drop the pending write if content is still the latest.
+    private boolean finishWrite(String key, PendingWrite pending, String content) {
+        synchronized (mPendingWrites) {
+            if (pending.mContent == content) {
+                mPendingWrites.remove(key);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Run any other storage operation in background.
+     */
+    public <T> Future<T> submit(final Callable<T> task, final Callback<T> callback) {
+        return mExecutor.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                T result = task.call();
+                deliver(result, callback);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Stop accepting new operations, the pending ones are still executed.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    private <T> Future<T> deliverNow(T result, Callback<T> callback) {
+        FutureTask<T> future = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, result);
+        future.run();
+        deliver(result, callback);
+        return future;
+    }
+
+    private <T> void deliver(final T result, final Callback<T> callback) {
+        if (callback != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResult(result);
+                }
+            });
+        }
+    }
+
+    // InternalStorage#readTextFile reads line by line and joins the lines without their separators
+    private static String stripLineSeparators(String content) {
+        if (content.indexOf('\n') < 0 && content.indexOf('\r') < 0) {
+            return content;
+        }
+        StringBuilder builder = new StringBuilder(content.length());
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c != '\n' && c != '\r') {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String buildKey(String directoryName, String fileName) {
+        if (directoryName == null || directoryName.isEmpty()) {
+            return fileName;
+        }
+        return directoryName + "/" + fileName;
+    }
+
+    private static class PendingWrite {
+        // guarded by mPendingWrites
+        String mContent;
+        // only added to while the write is pending, read once it's finished
+        final List<Callback<Void>> mCallbacks = new ArrayList<>();
+        Future<Void> mFuture;
+
+        PendingWrite(String content) {
+            mContent = content;
+        }
+
+        void addCallback(Callback<Void> callback) {
+            if (callback != null) {
+                mCallbacks.add(callback);
+            }
+        }
+    }
+
+    private static class IoThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG + "-io-" + mCount.getAndIncrement());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
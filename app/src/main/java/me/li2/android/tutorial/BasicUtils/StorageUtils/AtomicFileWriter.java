@@ -0,0 +1,92 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Crash-safe file writing, modeled on android.support.v4.util.AtomicFile: the new content goes to
+ * a temp file which is synced and renamed over the target, so a reader never sees a truncated file.
+ */
+
+public class AtomicFileWriter {
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mBaseFile;
+    private final File mTempFile;
+
+    public AtomicFileWriter(File baseFile) {
+        mBaseFile = baseFile;
+        mTempFile = new File(baseFile.getPath() + TEMP_SUFFIX);
+    }
+
+    public File getBaseFile() {
+        return mBaseFile;
+    }
+
+    /**
+     * Start a new write, the returned stream writes to the temp file.
+     */
+    public FileOutputStream startWrite() throws IOException {
+        return new FileOutputStream(mTempFile);
+    }
+
+    /**
+     * Flush the written content to disk, but don't publish it yet.
+     * Split from {@link #commit()} so that a batch can sync all of its files before renaming any of them.
+     */
+    public void sync(FileOutputStream out) throws IOException {
+        out.flush();
+        out.getFD().sync();
+        out.close();
+    }
+
+    /**
+     * Close the temp file without syncing it, {@link #sync()} it later.
+     * Lets a batch write all of its files first, then sync them in one pass.
+     */
+    public void close(FileOutputStream out) throws IOException {
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Flush the temp file, written and closed earlier, to disk.
+     * fsync applies to the file, not to the descriptor, so a new one is opened for it.
+     */
+    public void sync() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mTempFile, "rw");
+        try {
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Publish the synced temp file as the new content of the base file.
+     */
+    public void commit() throws IOException {
+        if (!mTempFile.renameTo(mBaseFile)) {
+            throw new IOException("Can not rename " + mTempFile + " to " + mBaseFile);
+        }
+    }
+
+    /**
+     * Complete a successful write, the base file now has the new content.
+     */
+    public void finishWrite(FileOutputStream out) throws IOException {
+        sync(out);
+        commit();
+    }
+
+    /**
+     * Abort the write, the base file keeps its old content.
+     */
+    public void failWrite(FileOutputStream out) {
+        StorageStreams.closeQuietly(out);
+        // if it can't be deleted, the next write will overwrite it.
+        mTempFile.delete();
+    }
+}
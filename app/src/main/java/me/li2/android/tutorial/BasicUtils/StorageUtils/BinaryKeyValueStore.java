@@ -0,0 +1,318 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link KeyValueStore} kept in a binary {@link LogStore}, one log record per applied {@link Editor},
+ * with all the values in memory. The log is compacted into a snapshot record when it grows.
+ */
+
+public class BinaryKeyValueStore implements KeyValueStore, Closeable {
+    private static final byte TYPE_REMOVED = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    // in place of the entry count, the record is a snapshot: it replaces every value replayed before it
+    private static final int SNAPSHOT_MARKER = -1;
+    // compact when the log is this many times bigger than a snapshot would be, and at least MIN_COMPACTION_BYTES
+    private static final int COMPACTION_RATIO = 4;
+    private static final long MIN_COMPACTION_BYTES = 64 * 1024;
+    // key length prefix, type, value
+    private static final int ENTRY_OVERHEAD = 4;
+
+    // guarded by mLogLock
+    private final LogStore mLog;
+    private final Object mLogLock = new Object();
+    private long mLogBytes;
+    // the last published record included in the snapshot of the last compaction, guarded by mLogLock
+    private long mSnapshotSequence;
+
+    // guarded by this
+    private final Map<String, Boolean> mValues = new HashMap<>();
+    private long mLiveBytes;
+    // number of records published so far, guarded by this
+    private long mPublishedSequence;
+
+    private final ExecutorService mWriteExecutor = Executors.newSingleThreadExecutor();
+    private final List<OnChangeListener> mListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Open the store in directory, creating it if needed. Replays the log, don't call from the main thread.
+     */
+    public BinaryKeyValueStore(File directory) throws IOException {
+        mLog = new LogStore(directory);
+        LogStore.RecordIterator records = mLog.iterator();
+        try {
+            while (records.hasNext()) {
+                byte[] record = records.next();
+                applyRecord(record);
+                mLogBytes += record.length;
+            }
+        } finally {
+            records.close();
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return mValues.containsKey(key);
+    }
+
+    @Override
+    public synchronized boolean getBoolean(String key, boolean defValue) {
+        Boolean value = mValues.get(key);
+        return value != null ? value : defValue;
+    }
+
+    public synchronized int size() {
+        return mValues.size();
+    }
+
+    @Override
+    public Editor edit() {
+        return new BinaryEditor();
+    }
+
+    @Override
+    public void registerOnChangeListener(OnChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override
+    public void unregisterOnChangeListener(OnChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Wait for the applied changes to be written, then close the log.
+     */
+    @Override
+    public void close() throws IOException {
+        mWriteExecutor.shutdown();
+        try {
+            mWriteExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (mLogLock) {
+            mLog.sync();
+            mLog.close();
+        }
+    }
+
+    private class BinaryEditor implements Editor {
+        // null value for a removal, insertion order kept so a later change to a key wins
+        private final Map<String, Boolean> mChanges = new LinkedHashMap<>();
+
+        @Override
+        public Editor putBoolean(String key, boolean value) {
+            mChanges.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Editor remove(String key) {
+            mChanges.put(key, null);
+            return this;
+        }
+
+        @Override
+        public void apply() {
+            Set<String> changedKeys = new LinkedHashSet<>();
+            publish(mChanges, false, changedKeys);
+            notifyListeners(changedKeys);
+        }
+
+        @Override
+        public boolean commit() {
+            Set<String> changedKeys = new LinkedHashSet<>();
+            Future<Boolean> written = publish(mChanges, true, changedKeys);
+            notifyListeners(changedKeys);
+            if (written == null) {
+                return true;
+            }
+            try {
+                return written.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+                return false;
+            }
+        }
+    }
+
+    // outside of the lock, so that listeners can read the store
+    private void notifyListeners(Set<String> changedKeys) {
+        if (changedKeys.isEmpty()) {
+            return;
+        }
+        Set<String> keys = Collections.unmodifiableSet(changedKeys);
+        for (OnChangeListener listener : mListeners) {
+            listener.onChanged(this, keys);
+        }
+    }
+
+    /**
+     * Update the index and queue the record, so that records reach the log in the order the changes were published.
+     *
+     * @param changedKeys filled with the keys whose value changed.
+     * @return the pending write, or null if nothing changed.
+     */
+    private synchronized Future<Boolean> publish(Map<String, Boolean> changes, final boolean sync,
+                                                 Set<String> changedKeys) {
+        Map<String, Boolean> effective = new LinkedHashMap<>();
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            String key = change.getKey();
+            Boolean value = change.getValue();
+            Boolean old = value != null ? mValues.put(key, value) : mValues.remove(key);
+            if (value == null ? old != null : !value.equals(old)) {
+                effective.put(key, value);
+                if (old == null) {
+                    mLiveBytes += ENTRY_OVERHEAD + key.length();
+                } else if (value == null) {
+                    mLiveBytes -= ENTRY_OVERHEAD + key.length();
+                }
+            }
+        }
+        changes.clear();
+        changedKeys.addAll(effective.keySet());
+        if (effective.isEmpty()) {
+            return null;
+        }
+
+        final byte[] record = encode(effective, false);
+        final long sequence = ++mPublishedSequence;
+        return mWriteExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                try {
+                    write(record, sequence, sync);
+                    return true;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            }
+        });
+    }
+
+    // On the writer thread, so records are appended in the order they were published.
+    private void write(byte[] record, long sequence, boolean sync) throws IOException {
+        long liveBytes;
+        synchronized (this) {
+            liveBytes = mLiveBytes;
+        }
+        synchronized (mLogLock) {
+            if (sequence <= mSnapshotSequence) {
+                // already in the snapshot of the last compaction, which is synced
+                return;
+            }
+            mLog.append(record);
+            mLogBytes += record.length;
+            if (mLogBytes > MIN_COMPACTION_BYTES && mLogBytes > COMPACTION_RATIO * liveBytes) {
+                compact();
+            } else if (sync) {
+                mLog.sync();
+            } else {
+                mLog.flush();
+            }
+        }
+    }
+
+    // Called with mLogLock held. The index is copied under its own lock, and encoded and written without it.
+    // The copy may already hold changes whose records are still queued, those records are skipped
+    // then (see mSnapshotSequence), so the log never replays a batch on top of a later state.
+    // A crash before deleteClosedSegments() leaves the old segments in front of the snapshot,
+    // which may miss such a skipped removal. The snapshot clears the index when it's replayed,
+    // so what they set doesn't outlive it.
+    private void compact() throws IOException {
+        Map<String, Boolean> values;
+        long sequence;
+        synchronized (this) {
+            values = new HashMap<>(mValues);
+            sequence = mPublishedSequence;
+        }
+        byte[] snapshot = encode(values, true);
+        mLog.sync();
+        mLog.rollSegment();
+        mLog.append(snapshot);
+        mLog.sync();
+        mLog.deleteClosedSegments();
+        mLogBytes = snapshot.length;
+        mSnapshotSequence = sequence;
+    }
+
+    // Record: SNAPSHOT_MARKER for a snapshot, entry count, then for each entry the key, the type,
+    // and the value for TYPE_BOOLEAN.
+    private static byte[] encode(Map<String, Boolean> entries, boolean snapshot) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + entries.size() * 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (snapshot) {
+                out.writeInt(SNAPSHOT_MARKER);
+            }
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Boolean> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                if (entry.getValue() == null) {
+                    out.writeByte(TYPE_REMOVED);
+                } else {
+                    out.writeByte(TYPE_BOOLEAN);
+                    out.writeBoolean(entry.getValue());
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void applyRecord(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        int count = in.readInt();
+        if (count == SNAPSHOT_MARKER) {
+            mValues.clear();
+            mLiveBytes = 0;
+            count = in.readInt();
+        }
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            byte type = in.readByte();
+            Boolean old;
+            if (type == TYPE_BOOLEAN) {
+                old = mValues.put(key, in.readBoolean());
+                if (old == null) {
+                    mLiveBytes += ENTRY_OVERHEAD + key.length();
+                }
+            } else if (type == TYPE_REMOVED) {
+                old = mValues.remove(key);
+                if (old != null) {
+                    mLiveBytes -= ENTRY_OVERHEAD + key.length();
+                }
+            } else {
+                throw new IOException("Unknown value type " + type + " of " + key);
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import java.util.ArrayDeque;
+
+/**
+ * Shared, thread-safe pool of copy buffers in three size classes: 8 KB, 64 KB and 256 KB.
+ */
+
+public final class BufferPool {
+    public static final int SMALL_BUFFER_SIZE = 8 * 1024;
+    public static final int MEDIUM_BUFFER_SIZE = 64 * 1024;
+    public static final int LARGE_BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_RETAINED_BYTES_PER_CLASS = 512 * 1024;
+
+    private static final int[] SIZE_CLASSES = {SMALL_BUFFER_SIZE, MEDIUM_BUFFER_SIZE, LARGE_BUFFER_SIZE};
+    private static final BufferPool sInstance = new BufferPool();
+
+    private final ArrayDeque<byte[]>[] mFreeBuffers;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private BufferPool() {
+        mFreeBuffers = new ArrayDeque[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            mFreeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    public static BufferPool get() {
+        return sInstance;
+    }
+
+    /**
+     * Acquire a buffer for copying about expectedLength bytes.
+     *
+     * @param expectedLength the number of bytes to copy, or a negative value if unknown.
+     * @return the smallest pooled size class which holds expectedLength, {@link #LARGE_BUFFER_SIZE} at most,
+     *         or {@link #MEDIUM_BUFFER_SIZE} if the length is unknown.
+     *         Must be given back with {@link #release(byte[])}.
+     */
+    public byte[] acquire(long expectedLength) {
+        int sizeClass = sizeClassFor(expectedLength);
+        ArrayDeque<byte[]> free = mFreeBuffers[sizeClass];
+        byte[] buffer;
+        synchronized (free) {
+            buffer = free.poll();
+        }
+        return buffer != null ? buffer : new byte[SIZE_CLASSES[sizeClass]];
+    }
+
+    /**
+     * Give a buffer back to the pool. The caller must not use it anymore.
+     * Only the length is checked, a buffer which isn't exactly one of the size classes is ignored.
+     * Any other buffer is pooled, even if it wasn't acquired here, so only release buffers from {@link #acquire(long)}.
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (buffer.length == SIZE_CLASSES[i]) {
+                ArrayDeque<byte[]> free = mFreeBuffers[i];
+                synchronized (free) {
+                    if ((free.size() + 1) * SIZE_CLASSES[i] <= MAX_RETAINED_BYTES_PER_CLASS) {
+                        free.push(buffer);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    private static int sizeClassFor(long expectedLength) {
+        if (expectedLength < 0) {
+            return 1;
+        }
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (expectedLength <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+}
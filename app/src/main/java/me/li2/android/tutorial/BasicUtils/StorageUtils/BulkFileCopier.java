@@ -0,0 +1,368 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
+
+/**
+ * Copy many files at once on a small pool of worker threads, with the progress aggregated over
+ * all the files and delivered on the main thread.
+ */
+
+public class BulkFileCopier {
+    private static final String TAG = makeLogTag(BulkFileCopier.class);
+    private static final int DEFAULT_WORKER_COUNT = 3;
+    private static final long PROGRESS_INTERVAL_MILLIS = 250;
+    // bytes per transferTo call, progress is updated after each chunk
+    private static final long TRANSFER_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    public static class CopyTask {
+        public final File mSource;
+        public final File mTarget;
+
+        public CopyTask(File source, File target) {
+            mSource = source;
+            mTarget = target;
+        }
+    }
+
+    public static class Progress {
+        public final int mTotalFiles;
+        public final int mCopiedFiles;
+        public final int mFailedFiles;
+        public final long mTotalBytes;
+        public final long mCopiedBytes;
+        public final long mElapsedMillis;
+
+        Progress(int totalFiles, int copiedFiles, int failedFiles, long totalBytes, long copiedBytes, long elapsedMillis) {
+            mTotalFiles = totalFiles;
+            mCopiedFiles = copiedFiles;
+            mFailedFiles = failedFiles;
+            mTotalBytes = totalBytes;
+            mCopiedBytes = copiedBytes;
+            mElapsedMillis = elapsedMillis;
+        }
+
+        public int getPercentage() {
+            return mTotalBytes > 0 ? (int) (100 * mCopiedBytes / mTotalBytes) : 100;
+        }
+
+        public long getBytesPerSecond() {
+            return mElapsedMillis > 0 ? mCopiedBytes * 1000 / mElapsedMillis : 0;
+        }
+
+        @Override
+        public String toString() {
+            return mCopiedFiles + "/" + mTotalFiles + " files (" + mFailedFiles + " failed), "
+                    + mCopiedBytes + "/" + mTotalBytes + " bytes, "
+                    + getBytesPerSecond() / 1024 + " KB/s";
+        }
+    }
+
+    public interface ProgressListener {
+        void onProgress(Progress progress);
+        void onComplete(Progress progress);
+    }
+
+    private final int mWorkerCount;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public BulkFileCopier() {
+        this(DEFAULT_WORKER_COUNT);
+    }
+
+    public BulkFileCopier(int workerCount) {
+        mWorkerCount = workerCount;
+        mExecutor = Executors.newFixedThreadPool(workerCount);
+    }
+
+    /**
+     * @return a task for every file under sourceDir, to the same relative path under targetDir.
+     */
+    public static List<CopyTask> listTasks(File sourceDir, File targetDir) {
+        List<CopyTask> tasks = new ArrayList<>();
+        addTasks(sourceDir, targetDir, tasks);
+        return tasks;
+    }
+
+    private static void addTasks(File sourceDir, File targetDir, List<CopyTask> tasks) {
+        File[] files = sourceDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addTasks(file, new File(targetDir, file.getName()), tasks);
+            } else {
+                tasks.add(new CopyTask(file, new File(targetDir, file.getName())));
+            }
+        }
+    }
+
+    /**
+     * Start copying, existing target files are overwritten. The sources are sized on a worker thread.
+     *
+     * @param listener called on the main thread, may be null.
+     */
+    public Job copy(final List<CopyTask> tasks, ProgressListener listener) {
+        final Job job = new Job(listener);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                job.start(tasks);
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Copy every file under sourceDir to the same relative path under targetDir, see {@link #listTasks(File, File)}.
+     * The directories are listed on a worker thread, so it can be called from the main thread.
+     */
+    public Job copyDirectory(final File sourceDir, final File targetDir, ProgressListener listener) {
+        final Job job = new Job(listener);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                job.start(job.isCancelled() ? new ArrayList<CopyTask>() : listTasks(sourceDir, targetDir));
+            }
+        });
+        return job;
+    }
+
+    /**
+     * Stop the workers once the started jobs are done.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public class Job {
+        private final ConcurrentLinkedQueue<CopyTask> mQueue = new ConcurrentLinkedQueue<>();
+        private final ProgressListener mListener;
+        // 0 until the tasks are listed and sized
+        private volatile int mTotalFiles;
+        private volatile long mTotalBytes;
+        private final long mStartMillis = SystemClock.uptimeMillis();
+        private final AtomicInteger mActiveWorkers = new AtomicInteger();
+        private final AtomicInteger mCopiedFiles = new AtomicInteger();
+        private final AtomicInteger mFailedFiles = new AtomicInteger();
+        private final AtomicLong mCopiedBytes = new AtomicLong();
+        private final AtomicLong mLastProgressMillis = new AtomicLong();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mCancelled;
+
+        private Job(ProgressListener listener) {
+            mListener = listener;
+        }
+
+        // On a worker thread, a stat per source.
+        private void start(List<CopyTask> tasks) {
+            long totalBytes = 0;
+            for (CopyTask task : tasks) {
+                totalBytes += task.mSource.length();
+            }
+            mTotalBytes = totalBytes;
+            mTotalFiles = tasks.size();
+            mQueue.addAll(tasks);
+
+            int workers = Math.min(mWorkerCount, tasks.size());
+            if (workers == 0) {
+                finish();
+                return;
+            }
+            mActiveWorkers.set(workers);
+            for (int i = 0; i < workers; i++) {
+                mExecutor.execute(mWorker);
+            }
+        }
+
+        private final Runnable mWorker = new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = null;
+                try {
+                    CopyTask task;
+                    while (!mCancelled && (task = mQueue.poll()) != null) {
+                        try {
+                            buffer = copyFile(task, buffer);
+                            mCopiedFiles.incrementAndGet();
+                        } catch (InterruptedIOException e) {
+                            // cancelled, the partial copy is already deleted
+                        } catch (IOException e) {
+                            Log.w(TAG, "Can not copy " + task.mSource + ": " + e.toString());
+                            mFailedFiles.incrementAndGet();
+                        }
+                        notifyProgress(false);
+                    }
+                } finally {
+                    BufferPool.get().release(buffer);
+                    if (mActiveWorkers.decrementAndGet() == 0) {
+                        finish();
+                    }
+                }
+            }
+        };
+
+        /**
+         * Stop copying, the files being copied are deleted and the remaining ones are skipped.
+         */
+        public void cancel() {
+            mCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        /**
+         * Block until all files are copied or the job is cancelled. Don't call from the main thread.
+         */
+        public Progress await() throws InterruptedException {
+            mDone.await();
+            return getProgress();
+        }
+
+        public Progress getProgress() {
+            return new Progress(mTotalFiles, mCopiedFiles.get(), mFailedFiles.get(),
+                    mTotalBytes, mCopiedBytes.get(), SystemClock.uptimeMillis() - mStartMillis);
+        }
+
+        private void finish() {
+            mDone.countDown();
+            notifyProgress(true);
+        }
+
+        // throttled to PROGRESS_INTERVAL_MILLIS, except the completion
+        private void notifyProgress(final boolean complete) {
+            if (mListener == null) {
+                return;
+            }
+            long now = SystemClock.uptimeMillis();
+            long last = mLastProgressMillis.get();
+            if (!complete && (now - last < PROGRESS_INTERVAL_MILLIS || !mLastProgressMillis.compareAndSet(last, now))) {
+                return;
+            }
+
+            final Progress progress = getProgress();
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (complete) {
+                        mListener.onComplete(progress);
+                    } else {
+                        mListener.onProgress(progress);
+                    }
+                }
+            });
+        }
+
+        /**
+         * A copy which fails or is cancelled deletes the target, and its bytes are taken back from the progress.
+         *
+         * @param buffer the worker's buffer, null until the fallback copy needs one.
+         * @return the worker's buffer to reuse for the next file.
+         * @throws InterruptedIOException if the job was cancelled during the copy.
+         */
+        private byte[] copyFile(CopyTask task, byte[] buffer) throws IOException {
+            File parent = task.mTarget.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+
+            FileChannel in = null;
+            FileChannel out = null;
+            // bytes of this file added to mCopiedBytes
+            AtomicLong fileBytes = new AtomicLong();
+            byte[] workerBuffer = buffer;
+            try {
+                in = new FileInputStream(task.mSource).getChannel();
+                out = new FileOutputStream(task.mTarget).getChannel();
+                try {
+                    transfer(in, out, fileBytes);
+                } catch (IOException e) {
+                    // transferTo isn't supported by every filesystem (e.g. some FUSE mounts), start again with a buffer
+                    Log.w(TAG, "transferTo failed, copy with a buffer: " + e.toString());
+                    mCopiedBytes.addAndGet(-fileBytes.getAndSet(0));
+                    out.truncate(0);
+                    out.position(0);
+                    in.position(0);
+                    if (buffer == null) {
+                        buffer = BufferPool.get().acquire(BufferPool.LARGE_BUFFER_SIZE);
+                    }
+                    copy(in, out, buffer, fileBytes);
+                }
+                if (mCancelled) {
+                    throw new InterruptedIOException("Cancelled");
+                }
+                return buffer;
+            } catch (IOException e) {
+                StorageStreams.closeQuietly(out);
+                task.mTarget.delete();
+                mCopiedBytes.addAndGet(-fileBytes.get());
+                if (buffer != workerBuffer) {
+                    // acquired for this file, the worker doesn't get it back
+                    BufferPool.get().release(buffer);
+                }
+                throw e;
+            } finally {
+                StorageStreams.closeQuietly(in);
+                StorageStreams.closeQuietly(out);
+            }
+        }
+
+        private void transfer(FileChannel in, FileChannel out, AtomicLong fileBytes) throws IOException {
+            long size = in.size();
+            long position = 0;
+            while (position < size && !mCancelled) {
+                long count = in.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, size - position), out);
+                if (count <= 0) {
+                    throw new IOException("transferTo made no progress at " + position + "/" + size);
+                }
+                position += count;
+                fileBytes.addAndGet(count);
+                mCopiedBytes.addAndGet(count);
+                notifyProgress(false);
+            }
+        }
+
+        private void copy(FileChannel in, FileChannel out, byte[] bytes, AtomicLong fileBytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int read;
+            while (!mCancelled && (read = in.read(buffer)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                fileBytes.addAndGet(read);
+                mCopiedBytes.addAndGet(read);
+                notifyProgress(false);
+            }
+        }
+    }
+}
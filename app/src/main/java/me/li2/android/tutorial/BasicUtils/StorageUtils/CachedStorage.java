@@ -0,0 +1,246 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import android.util.LruCache;
+
+import java.io.File;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * LRU cache of {@link #readTextFile(String, String)} results in front of another storage, bounded by chars.
+ * An entry is only served while the file keeps the lastModified and length it was read with.
+ */
+
+public class CachedStorage implements StorageInterface {
+    private final StorageInterface mStorage;
+    private final LruCache<String, Entry> mCache;
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mStaleCount = new AtomicInteger();
+
+    private static class Entry {
+        final String mContent;
+        final long mLastModified;
+        final long mLength;
+
+        Entry(String content, long lastModified, long length) {
+            mContent = content;
+            mLastModified = lastModified;
+            mLength = length;
+        }
+    }
+
+    /**
+     * @param storage the storage to read from and write to
+     * @param maxSizeInChars the maximum total length of the cached content
+     */
+    public CachedStorage(StorageInterface storage, int maxSizeInChars) {
+        mStorage = storage;
+        mCache = new LruCache<String, Entry>(maxSizeInChars) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return Math.max(1, value.mContent.length());
+            }
+        };
+    }
+
+    @Override
+    public String readTextFile(String directoryName, String fileName) {
+        File file = mStorage.getFile(directoryName, fileName);
+        if (file == null) {
+            // can't validate an entry without the file, don't cache
+            return mStorage.readTextFile(directoryName, fileName);
+        }
+
+        String key = file.getPath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Entry entry = mCache.get(key);
+        if (entry != null) {
+            if (entry.mLastModified == lastModified && entry.mLength == length) {
+                mHitCount.incrementAndGet();
+                return entry.mContent;
+            }
+            mStaleCount.incrementAndGet();
+            mCache.remove(key);
+        }
+
+        mMissCount.incrementAndGet();
+        String content = mStorage.readTextFile(directoryName, fileName);
+        // lastModified is 0 if the file doesn't exist
+        if (content != null && lastModified != 0) {
+            mCache.put(key, new Entry(content, lastModified, length));
+        }
+        return content;
+    }
+
+    @Override
+    public String readTextFile(String fileName) {
+        return readTextFile("", fileName);
+    }
+
+    @Override
+    public void writeFile(String directoryName, String fileName, String content) {
+        mStorage.writeFile(directoryName, fileName, content);
+        invalidate(directoryName, fileName);
+    }
+
+    @Override
+    public void writeFile(String fileName, String content) {
+        writeFile("", fileName, content);
+    }
+
+    @Override
+    public long writeFile(String directoryName, String fileName, ReadableByteChannel source) {
+        long written = mStorage.writeFile(directoryName, fileName, source);
+        invalidate(directoryName, fileName);
+        return written;
+    }
+
+    @Override
+    public long writeFile(String fileName, ReadableByteChannel source) {
+        return writeFile("", fileName, source);
+    }
+
+    /**
+     * The entry is dropped when the channel is opened, not when it's closed,
+     * a read in between may cache partial content until the file changes again.
+     */
+    @Override
+    public WritableByteChannel openWriteChannel(String directoryName, String fileName) {
+        invalidate(directoryName, fileName);
+        return mStorage.openWriteChannel(directoryName, fileName);
+    }
+
+    @Override
+    public WritableByteChannel openWriteChannel(String fileName) {
+        return openWriteChannel("", fileName);
+    }
+
+    @Override
+    public long copyFile(File source, String directoryName, String fileName) {
+        long copied = mStorage.copyFile(source, directoryName, fileName);
+        invalidate(directoryName, fileName);
+        return copied;
+    }
+
+    @Override
+    public long copyFile(File source, String fileName) {
+        return copyFile(source, "", fileName);
+    }
+
+    @Override
+    public void copyRawToFile(int rawId, String directoryName, String fileName) {
+        mStorage.copyRawToFile(rawId, directoryName, fileName);
+        invalidate(directoryName, fileName);
+    }
+
+    @Override
+    public void copyRawToFile(int rawId, String fileName) {
+        copyRawToFile(rawId, "", fileName);
+    }
+
+    @Override
+    public File createFile(String directoryName, String fileName) {
+        return mStorage.createFile(directoryName, fileName);
+    }
+
+    @Override
+    public File createFile(String fileName) {
+        return createFile("", fileName);
+    }
+
+    @Override
+    public boolean isFileExist(String directoryName, String fileName) {
+        return mStorage.isFileExist(directoryName, fileName);
+    }
+
+    @Override
+    public boolean isFileExist(String fileName) {
+        return isFileExist("", fileName);
+    }
+
+    @Override
+    public File getFile(String directoryName, String fileName) {
+        return mStorage.getFile(directoryName, fileName);
+    }
+
+    @Override
+    public File getFile(String name) {
+        return getFile("", name);
+    }
+
+    @Override
+    public ReadableByteChannel openReadChannel(String directoryName, String fileName) {
+        return mStorage.openReadChannel(directoryName, fileName);
+    }
+
+    @Override
+    public ReadableByteChannel openReadChannel(String fileName) {
+        return openReadChannel("", fileName);
+    }
+
+    @Override
+    public long readFile(String directoryName, String fileName, WritableByteChannel target) {
+        return mStorage.readFile(directoryName, fileName, target);
+    }
+
+    @Override
+    public long readFile(String fileName, WritableByteChannel target) {
+        return readFile("", fileName, target);
+    }
+
+    public void invalidate(String directoryName, String fileName) {
+        File file = mStorage.getFile(directoryName, fileName);
+        if (file != null) {
+            mCache.remove(file.getPath());
+        }
+    }
+
+    public void invalidateAll() {
+        mCache.evictAll();
+    }
+
+    /**
+     * @return number of reads served from the cache
+     */
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * @return number of reads which went to the underlying storage, including stale ones
+     */
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return number of entries dropped because the file was changed behind the cache
+     */
+    public int getStaleCount() {
+        return mStaleCount.get();
+    }
+
+    /**
+     * @return number of entries dropped to stay within the size limit
+     */
+    public int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    /**
+     * @return total length of the cached content, in chars
+     */
+    public int getSize() {
+        return mCache.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CachedStorage[size=" + mCache.size() + "/" + mCache.maxSize()
+                + ", hit=" + getHitCount() + ", miss=" + getMissCount()
+                + ", stale=" + getStaleCount() + ", eviction=" + getEvictionCount() + "]";
+    }
+}
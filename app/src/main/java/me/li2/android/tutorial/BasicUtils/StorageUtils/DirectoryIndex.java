@@ -0,0 +1,132 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory index of the file names in a set of directories, so existence checks are hash lookups
+ * instead of a stat per file. Directories are listed on first lookup. Thread-safe.
+ */
+
+public class DirectoryIndex {
+    private static final int WATCH_EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF;
+
+    // directory path -> names of the files in it, guarded by this
+    private final Map<String, Set<String>> mEntries = new HashMap<>();
+    // FileObserver stops watching once garbage collected, keep them referenced.
+    private final List<FileObserver> mObservers = new ArrayList<>();
+
+    public synchronized boolean exists(File file) {
+        File dir = file.getParentFile();
+        return dir != null && namesOf(dir).contains(file.getName());
+    }
+
+    /**
+     * @return names of the files in dir, the directory is listed if it's not indexed yet.
+     */
+    public synchronized Set<String> list(File dir) {
+        return Collections.unmodifiableSet(new HashSet<>(namesOf(dir)));
+    }
+
+    /**
+     * Record a file which has been created. Ignored if its directory isn't indexed yet,
+     * the file will be found when the directory is listed.
+     */
+    public synchronized void add(File file) {
+        Set<String> names = indexedNamesOf(file.getParentFile());
+        if (names != null) {
+            names.add(file.getName());
+        }
+    }
+
+    public synchronized void remove(File file) {
+        Set<String> names = indexedNamesOf(file.getParentFile());
+        if (names != null) {
+            names.remove(file.getName());
+        }
+    }
+
+    /**
+     * Forget a directory, it will be listed again on the next lookup.
+     */
+    public synchronized void invalidate(File dir) {
+        mEntries.remove(dir.getPath());
+    }
+
+    public synchronized void invalidateAll() {
+        mEntries.clear();
+    }
+
+    /**
+     * Keep the index of dir current with changes made by others, using a {@link FileObserver}.
+     * Only dir itself is watched, not its sub-directories.
+     */
+    public void watch(final File dir) {
+        FileObserver observer = new FileObserver(dir.getPath(), WATCH_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                switch (event & FileObserver.ALL_EVENTS) {
+                    case FileObserver.CREATE:
+                    case FileObserver.MOVED_TO:
+                        if (path != null) {
+                            add(new File(dir, path));
+                        }
+                        break;
+
+                    case FileObserver.DELETE:
+                    case FileObserver.MOVED_FROM:
+                        if (path != null) {
+                            remove(new File(dir, path));
+                        }
+                        break;
+
+                    case FileObserver.DELETE_SELF:
+                        invalidate(dir);
+                        break;
+                }
+            }
+        };
+        observer.startWatching();
+        synchronized (this) {
+            mObservers.add(observer);
+            // events before startWatching() were missed, list again.
+            mEntries.remove(dir.getPath());
+        }
+    }
+
+    /**
+     * Stop all {@link #watch(File)}.
+     */
+    public synchronized void stopWatching() {
+        for (FileObserver observer : mObservers) {
+            observer.stopWatching();
+        }
+        mObservers.clear();
+    }
+
+    private Set<String> indexedNamesOf(File dir) {
+        return dir != null ? mEntries.get(dir.getPath()) : null;
+    }
+
+    private Set<String> namesOf(File dir) {
+        Set<String> names = mEntries.get(dir.getPath());
+        if (names == null) {
+            String[] list = dir.list();
+            names = new HashSet<>();
+            if (list != null) {
+                Collections.addAll(names, list);
+            }
+            mEntries.put(dir.getPath(), names);
+        }
+        return names;
+    }
+}
@@ -0,0 +1,158 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import android.annotation.TargetApi;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.DocumentsContract;
+import android.provider.DocumentsContract.Document;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cache of a Storage Access Framework document tree, listing a directory with a single
+ * ContentResolver query instead of one per child and column. Queries block, don't call from the main thread.
+ */
+
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class DocumentTree {
+    private static final String[] PROJECTION = {
+            Document.COLUMN_DOCUMENT_ID,
+            Document.COLUMN_DISPLAY_NAME,
+            Document.COLUMN_MIME_TYPE,
+            Document.COLUMN_SIZE,
+            Document.COLUMN_LAST_MODIFIED,
+    };
+
+    public interface Visitor {
+        /**
+         * @return false to skip the children of a directory node.
+         */
+        boolean visit(Node node, int depth);
+    }
+
+    public static class Node {
+        public final String mDocumentId;
+        public final String mName;
+        public final String mMimeType;
+        public final long mSize;
+        public final long mLastModified;
+        public final Node mParent;
+        // null until listed, guarded by the tree
+        private List<Node> mChildren;
+
+        Node(Node parent, String documentId, String name, String mimeType, long size, long lastModified) {
+            mParent = parent;
+            mDocumentId = documentId;
+            mName = name;
+            mMimeType = mimeType;
+            mSize = size;
+            mLastModified = lastModified;
+        }
+
+        public boolean isDirectory() {
+            return Document.MIME_TYPE_DIR.equals(mMimeType);
+        }
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Uri mTreeUri;
+    private final Node mRoot;
+    private int mQueryCount;
+
+    public DocumentTree(Context context, Uri treeUri) {
+        mContentResolver = context.getContentResolver();
+        mTreeUri = treeUri;
+        // the root's own attributes aren't needed to walk the tree, don't spend a query on them.
+        mRoot = new Node(null, DocumentsContract.getTreeDocumentId(treeUri), null, Document.MIME_TYPE_DIR, 0, 0);
+    }
+
+    public Node getRoot() {
+        return mRoot;
+    }
+
+    public Uri getUri(Node node) {
+        return DocumentsContract.buildDocumentUriUsingTree(mTreeUri, node.mDocumentId);
+    }
+
+    /**
+     * @return children of the directory, listed with one query the first time.
+     *         Empty for a file, or if the directory can't be queried.
+     */
+    public synchronized List<Node> getChildren(Node directory) {
+        if (directory.mChildren == null) {
+            directory.mChildren = directory.isDirectory()
+                    ? Collections.unmodifiableList(queryChildren(directory))
+                    : Collections.<Node>emptyList();
+        }
+        return directory.mChildren;
+    }
+
+    public synchronized boolean isListed(Node directory) {
+        return directory.mChildren != null;
+    }
+
+    /**
+     * Walk the tree breadth-first from the root, listing each directory once.
+     */
+    public void walk(Visitor visitor) {
+        ArrayDeque<Node> directories = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        directories.add(mRoot);
+        depths.add(0);
+        while (!directories.isEmpty()) {
+            Node directory = directories.poll();
+            int depth = depths.poll() + 1;
+            for (Node child : getChildren(directory)) {
+                if (visitor.visit(child, depth) && child.isDirectory()) {
+                    directories.add(child);
+                    depths.add(depth);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the children of directory, and all their descendants, they are queried again on next access.
+     */
+    public synchronized void invalidate(Node directory) {
+        directory.mChildren = null;
+    }
+
+    /**
+     * @return number of ContentResolver queries issued so far.
+     */
+    public synchronized int getQueryCount() {
+        return mQueryCount;
+    }
+
+    private List<Node> queryChildren(Node directory) {
+        List<Node> children = new ArrayList<>();
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(mTreeUri, directory.mDocumentId);
+        mQueryCount++;
+        Cursor cursor = mContentResolver.query(childrenUri, PROJECTION, null, null, null);
+        if (cursor == null) {
+            return children;
+        }
+
+        try {
+            // PROJECTION order
+            while (cursor.moveToNext()) {
+                children.add(new Node(directory,
+                        cursor.getString(0),
+                        cursor.getString(1),
+                        cursor.getString(2),
+                        cursor.isNull(3) ? 0 : cursor.getLong(3),
+                        cursor.isNull(4) ? 0 : cursor.getLong(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return children;
+    }
+}
@@ -10,6 +10,22 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import static me.li2.android.tutorial.BasicUI.LogHelper.LOGD;
 import static me.li2.android.tutorial.BasicUI.LogHelper.LOGE;
@@ -26,11 +42,63 @@ import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
 public class InternalStorage implements StorageInterface {
     private static final String TAG = makeLogTag(InternalStorage.class);
     private Context mAppContext;
+    private boolean mAtomicWrite;
+    private DirectoryIndex mDirectoryIndex;
+    private StorageCodec mCodec = StorageCodec.NONE;
 
     public InternalStorage(Context context) {
         mAppContext = context.getApplicationContext();
     }
 
+    /**
+     * Write files through {@link AtomicFileWriter}: temp file, fsync, rename.
+     * A crash in the middle of a write will never leave a truncated file,
+     * at the cost of one fsync per write. Use {@link #beginBatch()} for many small writes, it writes all
+     * the files before syncing any, so the syncs run back to back instead of between the writes.
+     */
+    public void setAtomicWrite(boolean atomicWrite) {
+        mAtomicWrite = atomicWrite;
+    }
+
+    public boolean isAtomicWrite() {
+        return mAtomicWrite;
+    }
+
+    /**
+     * Answer {@link #isFileExist(String, String)} from a {@link DirectoryIndex}, one listing per directory
+     * instead of one stat per file. The index follows the files created through this storage,
+     * call {@link DirectoryIndex#watch(File)} or {@link DirectoryIndex#invalidate(File)} if others
+     * may create or delete files in the same directories.
+     */
+    public void setDirectoryIndexEnabled(boolean enabled) {
+        if (enabled && mDirectoryIndex == null) {
+            mDirectoryIndex = new DirectoryIndex();
+        } else if (!enabled && mDirectoryIndex != null) {
+            mDirectoryIndex.stopWatching();
+            mDirectoryIndex = null;
+        }
+    }
+
+    /**
+     * @return null if the index is not enabled
+     */
+    public DirectoryIndex getDirectoryIndex() {
+        return mDirectoryIndex;
+    }
+
+    /**
+     * Compress the files written from now on with codec, {@link StorageCodec#NONE} by default.
+     * Reads detect the codec of each file from its header, so files written with
+     * a different codec, or without compression, can still be read.
+     */
+    public void setCodec(StorageCodec codec) {
+        mCodec = codec;
+    }
+
+    public StorageCodec getCodec() {
+        return mCodec;
+    }
+
     @Override
     public File createFile(String directoryName, String fileName) {
         try {
@@ -40,8 +108,9 @@ public class InternalStorage implements StorageInterface {
             }
 
             File file = new File(dir, fileName);
-            if (!file.exists()) {
+            if (!exists(file)) {
                 file.createNewFile();
+                onFileCreated(file);
             }
 
             LOGD(TAG, "file " + fileName + " path " + file.getPath());
@@ -61,7 +130,17 @@ public class InternalStorage implements StorageInterface {
     @Override
     public boolean isFileExist(String directoryName, String fileName) {
         File file = new File(buildPath(directoryName, fileName));
-        return file.exists();
+        return exists(file);
+    }
+
+    private boolean exists(File file) {
+        return mDirectoryIndex != null ? mDirectoryIndex.exists(file) : file.exists();
+    }
+
+    private void onFileCreated(File file) {
+        if (mDirectoryIndex != null) {
+            mDirectoryIndex.add(file);
+        }
     }
 
     @Override
@@ -71,12 +150,12 @@ public class InternalStorage implements StorageInterface {
 
     @Override
     public File getFile(String directoryName, String fileName) {
-        return null;
+        return new File(buildPath(directoryName, fileName));
     }
 
     @Override
     public File getFile(String name) {
-        return null;
+        return getFile("", name);
     }
 
     @Override
@@ -86,7 +165,7 @@ public class InternalStorage implements StorageInterface {
             FileInputStream inputStream = new FileInputStream(new File(buildPath(directoryName, fileName)));
 
             if ( inputStream != null ) {
-                InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
+                InputStreamReader inputStreamReader = new InputStreamReader(StorageCodec.decode(inputStream));
                 BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
                 String receiveString = "";
                 StringBuilder stringBuilder = new StringBuilder();
@@ -115,15 +194,55 @@ public class InternalStorage implements StorageInterface {
 
     @Override
     public void writeFile(String directoryName, String fileName, String content) {
+        File file = new File(buildPath(directoryName, fileName));
+        if (mAtomicWrite) {
+            writeFileAtomic(file, content);
+            return;
+        }
+
+        OutputStream out = null;
         try {
-            byte[] bytes = content.getBytes();
-            FileOutputStream out = new FileOutputStream(new File(buildPath(directoryName, fileName)));
-            out.write(bytes);
-            out.close();
+            out = new FileOutputStream(file);
+            onFileCreated(file);
+            writeContent(out, content);
         }
         catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            StorageStreams.closeQuietly(out);
+        }
+    }
+
+    private boolean writeFileAtomic(File file, String content) {
+        AtomicFileWriter atomicFile = new AtomicFileWriter(file);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            writeContent(out, content);
+            atomicFile.finishWrite(out);
+            onFileCreated(file);
+            return true;
+        } catch (IOException e) {
+            LOGE(TAG, "Can not write file: " + e.toString());
+            atomicFile.failWrite(out);
+            return false;
+        }
+    }
+
+    // encode chunk by chunk, instead of content.getBytes() which holds a full copy on the heap.
+    // out is flushed but not closed, so that the caller can sync it.
+    private void writeContent(OutputStream out, String content) throws IOException {
+        Writer writer = new OutputStreamWriter(mCodec.encode(StorageStreams.nonClosing(out)));
+        StorageStreams.write(writer, content);
+        writer.close();
+    }
+
+    // a channel which writes through the codec to out, closing it finishes the codec but keeps out open.
+    private WritableByteChannel openEncodingChannel(FileOutputStream out) throws IOException {
+        if (mCodec == StorageCodec.NONE) {
+            return out.getChannel();
         }
+        return Channels.newChannel(mCodec.encode(StorageStreams.nonClosing(out)));
     }
 
     @Override
@@ -132,16 +251,243 @@ public class InternalStorage implements StorageInterface {
     }
 
     @Override
-    public void copyRawToFile(int rawId, String directoryName, String fileName) {
-        InputStream in = mAppContext.getResources().openRawResource(rawId);
+    public ReadableByteChannel openReadChannel(String directoryName, String fileName) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(buildPath(directoryName, fileName));
+            FileChannel channel = in.getChannel();
+            StorageCodec codec = StorageCodec.readHeader(channel);
+            if (codec == StorageCodec.NONE) {
+                // plain file, keep the FileChannel so that copies can use transferTo
+                return channel;
+            }
+            channel.position(StorageCodec.HEADER_LENGTH);
+            return Channels.newChannel(codec.decodeBody(in));
+        } catch (FileNotFoundException e) {
+            LOGE(TAG, "File not found: " + e.toString());
+            return null;
+        } catch (IOException e) {
+            LOGE(TAG, "Can not read file: " + e.toString());
+            StorageStreams.closeQuietly(in);
+            return null;
+        }
+    }
+
+    @Override
+    public ReadableByteChannel openReadChannel(String fileName) {
+        return openReadChannel("", fileName);
+    }
+
+    @Override
+    public WritableByteChannel openWriteChannel(String directoryName, String fileName) {
+        try {
+            File file = new File(buildPath(directoryName, fileName));
+            FileOutputStream out = new FileOutputStream(file);
+            onFileCreated(file);
+            if (mCodec == StorageCodec.NONE) {
+                return out.getChannel();
+            }
+            return Channels.newChannel(mCodec.encode(out));
+        } catch (IOException e) {
+            LOGE(TAG, "Can not open file: " + e.toString());
+            return null;
+        }
+    }
+
+    @Override
+    public WritableByteChannel openWriteChannel(String fileName) {
+        return openWriteChannel("", fileName);
+    }
+
+    @Override
+    public long readFile(String directoryName, String fileName, WritableByteChannel target) {
+        ReadableByteChannel source = openReadChannel(directoryName, fileName);
+        if (source == null) {
+            return -1;
+        }
+        try {
+            return StorageStreams.copy(source, target);
+        } catch (IOException e) {
+            LOGE(TAG, "Can not read file: " + e.toString());
+            return -1;
+        } finally {
+            StorageStreams.closeQuietly(source);
+        }
+    }
+
+    @Override
+    public long readFile(String fileName, WritableByteChannel target) {
+        return readFile("", fileName, target);
+    }
+
+    @Override
+    public long writeFile(String directoryName, String fileName, ReadableByteChannel source) {
+        if (mAtomicWrite) {
+            return writeFileThroughTemp(new File(buildPath(directoryName, fileName)), source, 0);
+        }
+
+        WritableByteChannel target = openWriteChannel(directoryName, fileName);
+        if (target == null) {
+            return -1;
+        }
+        try {
+            return StorageStreams.copy(source, target);
+        } catch (IOException e) {
+            LOGE(TAG, "Can not write file: " + e.toString());
+            return -1;
+        } finally {
+            StorageStreams.closeQuietly(target);
+        }
+    }
+
+    /**
+     * Write source to a temp file which replaces file only if the write succeeded,
+     * synced first if {@link #isAtomicWrite()}.
+     *
+     * @param minLength fewer bytes from source fail the write, file keeps its old content then.
+     */
+    private long writeFileThroughTemp(File file, ReadableByteChannel source, long minLength) {
+        AtomicFileWriter atomicFile = new AtomicFileWriter(file);
         FileOutputStream out = null;
         try {
-            out = new FileOutputStream(buildPath(directoryName, fileName));
-            byte[] buff = new byte[1024];
-            int read = 0;
-            while ((read = in.read(buff)) > 0) {
-                out.write(buff, 0, read);
+            out = atomicFile.startWrite();
+            WritableByteChannel target = openEncodingChannel(out);
+            long written = StorageStreams.copy(source, target);
+            if (target != out.getChannel()) {
+                target.close();
+            }
+            if (written < minLength) {
+                LOGE(TAG, "Short write of " + file + ": " + written + " of " + minLength + " bytes");
+                atomicFile.failWrite(out);
+                return -1;
+            }
+            if (mAtomicWrite) {
+                atomicFile.finishWrite(out);
+            } else {
+                atomicFile.close(out);
+                atomicFile.commit();
+            }
+            onFileCreated(file);
+            return written;
+        } catch (IOException e) {
+            LOGE(TAG, "Can not write file: " + e.toString());
+            atomicFile.failWrite(out);
+            return -1;
+        }
+    }
+
+    @Override
+    public long writeFile(String fileName, ReadableByteChannel source) {
+        return writeFile("", fileName, source);
+    }
+
+    @Override
+    public long copyFile(File source, String directoryName, String fileName) {
+        FileChannel in = null;
+        try {
+            in = new FileInputStream(source).getChannel();
+            // through a temp file, so a source which shrank while being copied doesn't truncate the target
+            return writeFileThroughTemp(new File(buildPath(directoryName, fileName)), in, in.size());
+        } catch (FileNotFoundException e) {
+            LOGE(TAG, "File not found: " + e.toString());
+            return -1;
+        } catch (IOException e) {
+            LOGE(TAG, "Can not copy file: " + e.toString());
+            return -1;
+        } finally {
+            StorageStreams.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public long copyFile(File source, String fileName) {
+        return copyFile(source, "", fileName);
+    }
+
+    /**
+     * Map a read-mostly file into memory.
+     * <p>
+     * Pages are loaded by the kernel on first access and shared with the page cache,
+     * so repeated random-access reads don't re-open or copy the file.
+     * The mapping stays valid after the channel is closed, until the buffer is garbage collected.
+     * Don't map a file which is being written, its content would change under the reader.
+     *
+     * @return null if the file can't be mapped
+     */
+    public MappedByteBuffer mapFile(String directoryName, String fileName) {
+        FileChannel channel = null;
+        try {
+            channel = new RandomAccessFile(buildPath(directoryName, fileName), "r").getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (FileNotFoundException e) {
+            LOGE(TAG, "File not found: " + e.toString());
+        } catch (IOException e) {
+            LOGE(TAG, "Can not map file: " + e.toString());
+        } finally {
+            StorageStreams.closeQuietly(channel);
+        }
+        return null;
+    }
+
+    public MappedByteBuffer mapFile(String fileName) {
+        return mapFile("", fileName);
+    }
+
+    /**
+     * Map a text file into memory and read it as chars, see {@link MappedCharSequence}.
+     * Unlike {@link #readTextFile(String, String)}, line separators are kept.
+     * A compressed file can't be used in place, it's decompressed into a String instead.
+     *
+     * @return empty if the file can't be mapped
+     */
+    public CharSequence mapTextFile(String directoryName, String fileName) {
+        MappedByteBuffer buffer = mapFile(directoryName, fileName);
+        if (buffer == null) {
+            return "";
+        }
+        StorageCodec codec = StorageCodec.fromHeader(buffer);
+        if (codec != StorageCodec.NONE) {
+            return decodeText(buffer, codec);
+        }
+        return MappedCharSequence.wrap(buffer, Charset.defaultCharset());
+    }
+
+    private String decodeText(MappedByteBuffer buffer, StorageCodec codec) {
+        ByteBuffer body = buffer.duplicate();
+        body.position(StorageCodec.HEADER_LENGTH);
+        Reader reader = null;
+        try {
+            reader = new InputStreamReader(codec.decodeBody(
+                    StorageStreams.newInputStream(body)));
+            StringBuilder stringBuilder = new StringBuilder();
+            char[] chars = new char[BufferPool.SMALL_BUFFER_SIZE];
+            int read;
+            while ((read = reader.read(chars)) != -1) {
+                stringBuilder.append(chars, 0, read);
             }
+            return stringBuilder.toString();
+        } catch (IOException e) {
+            LOGE(TAG, "Can not read file: " + e.toString());
+            return "";
+        } finally {
+            StorageStreams.closeQuietly(reader);
+        }
+    }
+
+    public CharSequence mapTextFile(String fileName) {
+        return mapTextFile("", fileName);
+    }
+
+    @Override
+    public void copyRawToFile(int rawId, String directoryName, String fileName) {
+        InputStream in = mAppContext.getResources().openRawResource(rawId);
+        OutputStream out = null;
+        try {
+            File file = new File(buildPath(directoryName, fileName));
+            out = mCodec.encode(new FileOutputStream(file));
+            onFileCreated(file);
+            // available() of a raw resource is its remaining length
+            StorageStreams.copy(in, out, in.available());
         } catch (FileNotFoundException e) {
             e.printStackTrace();
         } catch (IOException e) {
@@ -169,6 +515,98 @@ public class InternalStorage implements StorageInterface {
         copyRawToFile(rawId, "", fileName);
     }
 
+    /**
+     * Open an append-only log in directoryName, for records which would otherwise be appended
+     * by rewriting a whole file with {@link #writeFile(String, String, String)}, see {@link LogStore}.
+     *
+     * @return null if the log can't be opened
+     */
+    public LogStore openLogStore(String directoryName) {
+        try {
+            return new LogStore(new File(buildPath(directoryName, "")));
+        } catch (IOException e) {
+            LOGE(TAG, "Can not open log: " + e.toString());
+        }
+        return null;
+    }
+
+    /**
+     * Start a group commit, see {@link WriteBatch}.
+     */
+    public WriteBatch beginBatch() {
+        return new WriteBatch();
+    }
+
+    /**
+     * Group commit for many small writes.
+     * <p>
+     * Writes are collected in memory, a later write to the same file replaces the pending content.
+     * {@link #commit()} works in three passes: it writes every file to its temp file, then syncs them all,
+     * then renames them. Each file still needs its own fsync, but they run back to back after all the
+     * writes, so the disk can flush the batch together. Either every file of the batch gets the new content,
+     * or none does unless a rename fails.
+     * Always atomic, regardless of {@link #setAtomicWrite(boolean)}. Not thread-safe.
+     */
+    public class WriteBatch {
+        private final Map<File, String> mPending = new LinkedHashMap<>();
+
+        private WriteBatch() {
+        }
+
+        public WriteBatch writeFile(String directoryName, String fileName, String content) {
+            mPending.put(new File(buildPath(directoryName, fileName)), content);
+            return this;
+        }
+
+        public WriteBatch writeFile(String fileName, String content) {
+            return writeFile("", fileName, content);
+        }
+
+        public int size() {
+            return mPending.size();
+        }
+
+        /**
+         * @return true if all pending writes were committed, the batch is empty then and can be reused.
+         */
+        public boolean commit() {
+            List<AtomicFileWriter> written = new ArrayList<>(mPending.size());
+            try {
+                for (Map.Entry<File, String> entry : mPending.entrySet()) {
+                    AtomicFileWriter atomicFile = new AtomicFileWriter(entry.getKey());
+                    FileOutputStream out = null;
+                    try {
+                        out = atomicFile.startWrite();
+                        writeContent(out, entry.getValue());
+                        atomicFile.close(out);
+                    } catch (IOException e) {
+                        atomicFile.failWrite(out);
+                        throw e;
+                    }
+                    written.add(atomicFile);
+                }
+
+                for (AtomicFileWriter atomicFile : written) {
+                    atomicFile.sync();
+                }
+
+                for (AtomicFileWriter atomicFile : written) {
+                    atomicFile.commit();
+                    onFileCreated(atomicFile.getBaseFile());
+                }
+                mPending.clear();
+                return true;
+            } catch (IOException e) {
+                LOGE(TAG, "Can not commit " + mPending.size() + " files: " + e.toString());
+                // drop the temp files which haven't been renamed.
+                for (AtomicFileWriter atomicFile : written) {
+                    atomicFile.failWrite(null);
+                }
+                return false;
+            }
+        }
+    }
+
     private String buildPath(String directoryName, String fileName) {
         if (directoryName == null || directoryName.isEmpty()) {
             return buildAbsolutePath() + "/" + fileName;
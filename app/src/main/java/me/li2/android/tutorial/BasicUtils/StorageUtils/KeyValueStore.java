@@ -0,0 +1,49 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import java.util.Set;
+
+/**
+ * The small part of {@link android.content.SharedPreferences} the app uses, so that the storage behind it can be changed.
+ */
+
+public interface KeyValueStore {
+    boolean contains(String key);
+
+    boolean getBoolean(String key, boolean defValue);
+
+    /**
+     * @return an editor to change several values at once, nothing is visible until it's applied or committed.
+     */
+    Editor edit();
+
+    void registerOnChangeListener(OnChangeListener listener);
+
+    void unregisterOnChangeListener(OnChangeListener listener);
+
+    interface OnChangeListener {
+        /**
+         * Called once per applied or committed {@link Editor}, on the thread which applied it.
+         *
+         * @param keys the keys whose value changed
+         */
+        void onChanged(KeyValueStore store, Set<String> keys);
+    }
+
+    interface Editor {
+        Editor putBoolean(String key, boolean value);
+
+        Editor remove(String key);
+
+        /**
+         * Publish the changes in memory right away and persist them in the background.
+         */
+        void apply();
+
+        /**
+         * Publish and persist the changes before returning.
+         *
+         * @return false if they couldn't be persisted, they're still published in memory.
+         */
+        boolean commit();
+    }
+}
@@ -0,0 +1,556 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of [length][CRC32][bytes] records, split into segment files in one directory.
+ * A record torn by a crash is cut off on open, closed segments can be compacted in the background.
+ */
+
+public class LogStore implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = BufferPool.MEDIUM_BUFFER_SIZE;
+    // length + crc
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface RecordFilter {
+        /**
+         * @return false to drop the record from the log. Called on the compaction thread.
+         */
+        boolean keep(byte[] record);
+    }
+
+    private static class Segment {
+        final long mId;
+        final File mFile;
+        // true once a compaction rewrote or checked it, segments of a previous run aren't. Guarded by the store.
+        boolean mCompacted;
+
+        Segment(long id, File file) {
+            mId = id;
+            mFile = file;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mSegmentSize;
+    // oldest first, the last one is the active segment. Guarded by this.
+    private final List<Segment> mSegments = new ArrayList<>();
+    private final ExecutorService mCompactionExecutor;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mHeader = new byte[RECORD_HEADER_LENGTH];
+    private FileOutputStream mActiveFile;
+    private OutputStream mActiveOut;
+    private long mActiveSize;
+    private RecordFilter mCompactionFilter;
+    private boolean mClosed;
+
+    public LogStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open the log in directory, creating it if needed.
+     *
+     * @param segmentSize a new segment is started when the active one reaches this many bytes.
+     */
+    public LogStore(File directory, long segmentSize) throws IOException {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create " + directory);
+        }
+
+        for (long id : listSegmentIds(directory)) {
+            mSegments.add(new Segment(id, segmentFile(id)));
+        }
+        if (mSegments.isEmpty()) {
+            mSegments.add(new Segment(0, segmentFile(0)));
+        }
+        Segment active = mSegments.get(mSegments.size() - 1);
+        mActiveSize = recover(active.mFile);
+        openActive(active);
+
+        mCompactionExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LogStore-compaction");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    /**
+     * Compact every closed segment with filter whenever a segment is closed, null to disable.
+     */
+    public synchronized void setCompactionFilter(RecordFilter filter) {
+        mCompactionFilter = filter;
+    }
+
+    public void append(String record) throws IOException {
+        append(record.getBytes(UTF_8));
+    }
+
+    public void append(byte[] record) throws IOException {
+        append(record, 0, record.length);
+    }
+
+    /**
+     * Append a record. It's buffered, call {@link #flush()} or {@link #sync()} to make it durable.
+     */
+    public synchronized void append(byte[] record, int offset, int length) throws IOException {
+        checkNotClosed();
+        if (length > MAX_RECORD_LENGTH) {
+            throw new IOException("Record too large: " + length);
+        }
+        mCrc.reset();
+        mCrc.update(record, offset, length);
+        writeInt(mHeader, 0, length);
+        writeInt(mHeader, 4, (int) mCrc.getValue());
+        mActiveOut.write(mHeader);
+        mActiveOut.write(record, offset, length);
+        mActiveSize += RECORD_HEADER_LENGTH + length;
+        if (mActiveSize >= mSegmentSize) {
+            roll();
+        }
+    }
+
+    /**
+     * Write the buffered records to the active segment, they survive a process crash but not a power loss.
+     */
+    public synchronized void flush() throws IOException {
+        checkNotClosed();
+        mActiveOut.flush();
+    }
+
+    /**
+     * Flush and fsync the active segment, the appended records survive a power loss.
+     */
+    public synchronized void sync() throws IOException {
+        flush();
+        mActiveFile.getFD().sync();
+    }
+
+    /**
+     * Close the active segment and start a new one, regardless of the segment size.
+     */
+    public synchronized void rollSegment() throws IOException {
+        checkNotClosed();
+        roll();
+    }
+
+    /**
+     * Delete every segment but the active one, e.g. once its content is summarized by
+     * records appended since {@link #rollSegment()}.
+     */
+    public synchronized void deleteClosedSegments() throws IOException {
+        checkNotClosed();
+        while (mSegments.size() > 1) {
+            Segment segment = mSegments.remove(0);
+            if (!segment.mFile.delete() && segment.mFile.exists()) {
+                throw new IOException("Can not delete " + segment.mFile);
+            }
+        }
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Stream the records from the oldest to the newest, one at a time.
+     * <p>
+     * The iterator sees the records appended before it was created, later ones aren't returned.
+     * Segments are opened up front, so compaction can't change what the iterator reads.
+     * Must be closed, unless it's run to the end.
+     */
+    public synchronized RecordIterator iterator() throws IOException {
+        flush();
+        List<FileInputStream> streams = new ArrayList<>(mSegments.size());
+        try {
+            for (Segment segment : mSegments) {
+                streams.add(new FileInputStream(segment.mFile));
+            }
+        } catch (IOException e) {
+            for (InputStream stream : streams) {
+                StorageStreams.closeQuietly(stream);
+            }
+            throw e;
+        }
+        return new RecordIterator(streams, mActiveSize);
+    }
+
+    /**
+     * Compact all closed segments with filter on the background thread.
+     */
+    public Future<?> compact(final RecordFilter filter) {
+        return mCompactionExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                compactSegments(filter, false);
+            }
+        });
+    }
+
+    /**
+     * Flush and close the active segment. A running compaction is finished, pending ones are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mActiveOut.close();
+        }
+        mCompactionExecutor.shutdownNow();
+    }
+
+    // Called with the lock held.
+    private void roll() throws IOException {
+        mActiveOut.close();
+        Segment closed = mSegments.get(mSegments.size() - 1);
+        long id = closed.mId + 1;
+        Segment active = new Segment(id, segmentFile(id));
+        mSegments.add(active);
+        mActiveSize = 0;
+        openActive(active);
+
+        final RecordFilter filter = mCompactionFilter;
+        if (filter != null) {
+            mCompactionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compactSegments(filter, true);
+                }
+            });
+        }
+    }
+
+    private void openActive(Segment segment) throws IOException {
+        mActiveFile = new FileOutputStream(segment.mFile, true);
+        mActiveOut = new BufferedOutputStream(mActiveFile, WRITE_BUFFER_SIZE);
+    }
+
+    private void compactSegments(RecordFilter filter, boolean newOnly) {
+        List<Segment> closed = new ArrayList<>();
+        synchronized (this) {
+            for (Segment segment : mSegments.subList(0, mSegments.size() - 1)) {
+                if (!newOnly || !segment.mCompacted) {
+                    closed.add(segment);
+                }
+            }
+        }
+
+        for (Segment segment : closed) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            try {
+                compactSegment(segment, filter);
+            } catch (IOException e) {
+                // the segment keeps its old content, it will be compacted again next time.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Rewrites the segment with the kept records, done outside of the lock so that appends aren't blocked.
+    private void compactSegment(Segment segment, RecordFilter filter) throws IOException {
+        AtomicFileWriter atomicFile = new AtomicFileWriter(segment.mFile);
+        RecordIterator records = new RecordIterator(
+                Arrays.asList(new FileInputStream(segment.mFile)), Long.MAX_VALUE);
+        FileOutputStream out = null;
+        int kept = 0;
+        int dropped = 0;
+        try {
+            out = atomicFile.startWrite();
+            OutputStream bufferedOut = new BufferedOutputStream(StorageStreams.nonClosing(out), WRITE_BUFFER_SIZE);
+            CRC32 crc = new CRC32();
+            byte[] header = new byte[RECORD_HEADER_LENGTH];
+            while (records.hasNext()) {
+                byte[] record = records.next();
+                if (!filter.keep(record)) {
+                    dropped++;
+                    continue;
+                }
+                crc.reset();
+                crc.update(record, 0, record.length);
+                writeInt(header, 0, record.length);
+                writeInt(header, 4, (int) crc.getValue());
+                bufferedOut.write(header);
+                bufferedOut.write(record);
+                kept++;
+            }
+            bufferedOut.flush();
+
+            if (dropped == 0 || kept == 0) {
+                // nothing to rewrite, the segment is kept as it is or deleted below
+                atomicFile.failWrite(out);
+            } else {
+                atomicFile.sync(out);
+            }
+        } catch (IOException | RuntimeException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        } finally {
+            records.close();
+        }
+
+        synchronized (this) {
+            if (mClosed || !mSegments.contains(segment)) {
+                // closed, or the segment was dropped by deleteClosedSegments() meanwhile
+                atomicFile.failWrite(null);
+                return;
+            }
+            if (kept == 0) {
+                segment.mFile.delete();
+                mSegments.remove(segment);
+            } else if (dropped > 0) {
+                atomicFile.commit();
+            }
+            segment.mCompacted = true;
+        }
+    }
+
+    /**
+     * @return length of the valid records of the file, a torn record at the end is truncated.
+     */
+    private static long recover(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        RecordIterator records = new RecordIterator(
+                Arrays.asList(new FileInputStream(file)), Long.MAX_VALUE);
+        long validLength;
+        try {
+            while (records.hasNext()) {
+                records.next();
+            }
+            validLength = records.mPosition;
+        } finally {
+            records.close();
+        }
+
+        if (validLength < file.length()) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+        return validLength;
+    }
+
+    private static long[] listSegmentIds(File directory) {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (names == null) {
+            return new long[0];
+        }
+        long[] ids = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            try {
+                ids[count] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // not a segment
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private File segmentFile(long id) {
+        // zero-padded so that the names sort in id order
+        return new File(mDirectory, String.format(Locale.US, "%019d", id) + SEGMENT_SUFFIX);
+    }
+
+    private void checkNotClosed() throws IOException {
+        if (mClosed) {
+            throw new IOException("LogStore is closed");
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Reads the records of a list of segments in order, holding only the current record in memory.
+     * Stops at the first torn or corrupted record of a segment and goes on with the next segment.
+     */
+    public static class RecordIterator implements Iterator<byte[]>, Closeable {
+        private final List<FileInputStream> mStreams;
+        // bytes to read from the last segment, at most its file length
+        private final long mLastSegmentLength;
+        private final CRC32 mCrc = new CRC32();
+        private int mSegmentIndex = -1;
+        private DataInputStream mIn;
+        private byte[] mReadBuffer;
+        // position in the current segment after the last valid record
+        private long mPosition;
+        // bytes to read from the current segment, so a corrupted length can't exceed them
+        private long mSegmentLimit;
+        private byte[] mNext;
+
+        RecordIterator(List<FileInputStream> streams, long lastSegmentLength) {
+            mStreams = streams;
+            mLastSegmentLength = lastSegmentLength;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mNext == null) {
+                if (mIn == null && !nextSegment()) {
+                    return false;
+                }
+                mNext = readRecord();
+                if (mNext == null) {
+                    StorageStreams.closeQuietly(mIn);
+                    mIn = null;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public byte[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            byte[] record = mNext;
+            mNext = null;
+            return record;
+        }
+
+        public String nextString() {
+            return new String(next(), UTF_8);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            StorageStreams.closeQuietly(mIn);
+            mIn = null;
+            for (int i = mSegmentIndex + 1; i < mStreams.size(); i++) {
+                StorageStreams.closeQuietly(mStreams.get(i));
+            }
+            mSegmentIndex = mStreams.size();
+            if (mReadBuffer != null) {
+                BufferPool.get().release(mReadBuffer);
+                mReadBuffer = null;
+            }
+        }
+
+        private boolean nextSegment() {
+            mSegmentIndex++;
+            if (mSegmentIndex >= mStreams.size()) {
+                close();
+                return false;
+            }
+            if (mReadBuffer == null) {
+                mReadBuffer = BufferPool.get().acquire(READ_BUFFER_SIZE);
+            }
+            FileInputStream stream = mStreams.get(mSegmentIndex);
+            mIn = new DataInputStream(new PooledBufferedInputStream(stream, mReadBuffer));
+            mPosition = 0;
+            try {
+                mSegmentLimit = stream.getChannel().size();
+            } catch (IOException e) {
+                // read nothing from it, like a segment torn at its first record
+                e.printStackTrace();
+                mSegmentLimit = 0;
+            }
+            if (mSegmentIndex == mStreams.size() - 1) {
+                mSegmentLimit = Math.min(mSegmentLimit, mLastSegmentLength);
+            }
+            return true;
+        }
+
+        // null at the end of the segment, or at a torn record
+        private byte[] readRecord() {
+            long limit = mSegmentLimit;
+            if (limit - mPosition < RECORD_HEADER_LENGTH) {
+                return null;
+            }
+            try {
+                int length = mIn.readInt();
+                int crc = mIn.readInt();
+                if (length < 0 || length > MAX_RECORD_LENGTH || length > limit - mPosition - RECORD_HEADER_LENGTH) {
+                    return null;
+                }
+                byte[] record = new byte[length];
+                mIn.readFully(record);
+                mCrc.reset();
+                mCrc.update(record, 0, length);
+                if ((int) mCrc.getValue() != crc) {
+                    return null;
+                }
+                mPosition += RECORD_HEADER_LENGTH + length;
+                return record;
+            } catch (EOFException e) {
+                return null;
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+    }
+
+    // BufferedInputStream over a pooled buffer, so iterating doesn't allocate a buffer per segment.
+    private static class PooledBufferedInputStream extends BufferedInputStream {
+        PooledBufferedInputStream(InputStream in, byte[] buffer) {
+            super(in, 1);
+            buf = buffer;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link CharSequence} view over a (memory-mapped) {@link ByteBuffer}, one byte per char,
+ * see {@link #wrap(ByteBuffer, Charset)} for multi-byte text.
+ */
+
+public final class MappedCharSequence implements CharSequence {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private final ByteBuffer mBuffer;
+
+    private MappedCharSequence(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * @param buffer bytes from position to limit are wrapped, the buffer itself is not modified.
+     * @param charset the charset the content was written with.
+     * @return a zero-copy view if the content is single byte text, otherwise the decoded chars.
+     */
+    public static CharSequence wrap(ByteBuffer buffer, Charset charset) {
+        ByteBuffer view = buffer.slice();
+        if (ISO_8859_1.equals(charset) || isAscii(view)) {
+            return new MappedCharSequence(view);
+        }
+        return charset.decode(view);
+    }
+
+    private static boolean isAscii(ByteBuffer buffer) {
+        for (int i = 0, length = buffer.limit(); i < length; i++) {
+            if (buffer.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return mBuffer.limit();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (mBuffer.get(index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length());
+        }
+        ByteBuffer view = mBuffer.duplicate();
+        view.position(start);
+        view.limit(end);
+        return new MappedCharSequence(view.slice());
+    }
+
+    @Override
+    public String toString() {
+        char[] chars = new char[length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = charAt(i);
+        }
+        return new String(chars);
+    }
+}
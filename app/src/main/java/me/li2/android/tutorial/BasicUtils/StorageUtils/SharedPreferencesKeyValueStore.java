@@ -0,0 +1,91 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import android.content.SharedPreferences;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * {@link KeyValueStore} on top of SharedPreferences, for when a {@link BinaryKeyValueStore} can't be opened.
+ */
+
+public class SharedPreferencesKeyValueStore implements KeyValueStore {
+    private final SharedPreferences mPreferences;
+    private final List<OnChangeListener> mListeners = new CopyOnWriteArrayList<>();
+
+    public SharedPreferencesKeyValueStore(SharedPreferences preferences) {
+        mPreferences = preferences;
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return mPreferences.contains(key);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return mPreferences.getBoolean(key, defValue);
+    }
+
+    @Override
+    public void registerOnChangeListener(OnChangeListener listener) {
+        mListeners.add(listener);
+    }
+
+    @Override
+    public void unregisterOnChangeListener(OnChangeListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Listeners get every key put or removed by the editor, even if its value didn't change.
+     * They're called once per editor, not once per key like SharedPreferences.OnSharedPreferenceChangeListener.
+     */
+    @Override
+    public Editor edit() {
+        final SharedPreferences.Editor editor = mPreferences.edit();
+        final Set<String> keys = new LinkedHashSet<>();
+        return new Editor() {
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                editor.putBoolean(key, value);
+                keys.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                editor.remove(key);
+                keys.add(key);
+                return this;
+            }
+
+            @Override
+            public void apply() {
+                editor.apply();
+                notifyListeners(keys);
+            }
+
+            @Override
+            public boolean commit() {
+                boolean committed = editor.commit();
+                notifyListeners(keys);
+                return committed;
+            }
+        };
+    }
+
+    private void notifyListeners(Set<String> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        Set<String> changedKeys = Collections.unmodifiableSet(new LinkedHashSet<>(keys));
+        keys.clear();
+        for (OnChangeListener listener : mListeners) {
+            listener.onChanged(this, changedKeys);
+        }
+    }
+}
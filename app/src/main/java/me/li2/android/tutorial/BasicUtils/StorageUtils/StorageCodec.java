@@ -0,0 +1,131 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression codecs for stored files: DEFLATE or GZIP behind a 5 bytes "LI2Z" header,
+ * files without the header are read as they are.
+ */
+
+public enum StorageCodec {
+    NONE(0),
+    GZIP(1),
+    DEFLATE(2);
+
+    private static final byte[] MAGIC = {'L', 'I', '2', 'Z'};
+    public static final int HEADER_LENGTH = MAGIC.length + 1;
+    private static final int STREAM_BUFFER_SIZE = BufferPool.SMALL_BUFFER_SIZE;
+
+    private final int mId;
+
+    StorageCodec(int id) {
+        mId = id;
+    }
+
+    /**
+     * Write the header and wrap out to compress everything written to it.
+     * Closing the returned stream finishes the compressed data and closes out.
+     */
+    public OutputStream encode(OutputStream out) throws IOException {
+        if (this == NONE) {
+            return out;
+        }
+
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        header[MAGIC.length] = (byte) mId;
+        out.write(header);
+
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, STREAM_BUFFER_SIZE);
+            case DEFLATE:
+            default:
+                return new DeflaterOutputStream(out);
+        }
+    }
+
+    /**
+     * Wrap in to decompress, in must be positioned after the header.
+     */
+    public InputStream decodeBody(InputStream in) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(in, STREAM_BUFFER_SIZE);
+            case DEFLATE:
+                return new InflaterInputStream(in);
+            case NONE:
+            default:
+                return in;
+        }
+    }
+
+    /**
+     * Detect the codec from the header of in, and wrap in to decompress.
+     * Content without header is returned as it is.
+     */
+    public static InputStream decode(InputStream in) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in, STREAM_BUFFER_SIZE);
+        buffered.mark(HEADER_LENGTH);
+        byte[] header = new byte[HEADER_LENGTH];
+        int read = 0;
+        int count;
+        while (read < HEADER_LENGTH && (count = buffered.read(header, read, HEADER_LENGTH - read)) != -1) {
+            read += count;
+        }
+
+        StorageCodec codec = read == HEADER_LENGTH ? fromHeader(ByteBuffer.wrap(header)) : NONE;
+        if (codec == NONE) {
+            buffered.reset();
+            return buffered;
+        }
+        return codec.decodeBody(buffered);
+    }
+
+    /**
+     * Read the header at the start of the file, without moving the channel position.
+     */
+    public static StorageCodec readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+            // keep reading, a positional read may return less bytes than requested
+        }
+        if (header.hasRemaining()) {
+            return NONE;
+        }
+        header.flip();
+        return fromHeader(header);
+    }
+
+    /**
+     * @param buffer content starting with a possible header, its position is not changed.
+     * @return the codec of the header, or NONE if there is no header.
+     */
+    public static StorageCodec fromHeader(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return NONE;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buffer.get(start + i) != MAGIC[i]) {
+                return NONE;
+            }
+        }
+        int id = buffer.get(start + MAGIC.length);
+        for (StorageCodec codec : values()) {
+            if (codec.mId == id) {
+                return codec;
+            }
+        }
+        return NONE;
+    }
+}
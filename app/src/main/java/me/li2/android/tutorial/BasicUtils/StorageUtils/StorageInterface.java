@@ -1,6 +1,8 @@
 package me.li2.android.tutorial.BasicUtils.StorageUtils;
 
 import java.io.File;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * Created by weiyi on 25/04/2017.
@@ -53,6 +55,52 @@ public interface StorageInterface {
     void writeFile(String directoryName, String fileName, String content);
     void writeFile(String fileName, String content);
 
+    /**
+     * Open a channel to stream the file content, the caller is responsible for closing it.
+     *
+     * @param directoryName The directory name
+     * @param fileName The file name
+     * @return null if the file can't be opened
+     */
+    ReadableByteChannel openReadChannel(String directoryName, String fileName);
+    ReadableByteChannel openReadChannel(String fileName);
+
+    /**
+     * Open a channel to stream content into the file, existing content is truncated.
+     * The caller is responsible for closing it.
+     *
+     * @param directoryName The directory name
+     * @param fileName The file name
+     * @return null if the file can't be opened
+     */
+    WritableByteChannel openWriteChannel(String directoryName, String fileName);
+    WritableByteChannel openWriteChannel(String fileName);
+
+    /**
+     * Stream file content into target without loading it into memory. target is not closed.
+     *
+     * @return the number of bytes read, or -1 if failed
+     */
+    long readFile(String directoryName, String fileName, WritableByteChannel target);
+    long readFile(String fileName, WritableByteChannel target);
+
+    /**
+     * Stream content from source into file without loading it into memory. source is not closed.
+     *
+     * @return the number of bytes written, or -1 if failed
+     */
+    long writeFile(String directoryName, String fileName, ReadableByteChannel source);
+    long writeFile(String fileName, ReadableByteChannel source);
+
+    /**
+     * Copy an existing file into storage, bytes are moved by {@link java.nio.channels.FileChannel#transferTo}.
+     *
+     * @param source The file to copy from
+     * @return the number of bytes copied, or -1 if failed. A failed copy leaves the target as it was.
+     */
+    long copyFile(File source, String directoryName, String fileName);
+    long copyFile(File source, String fileName);
+
     void copyRawToFile(int rawId, String directoryName, String fileName);
     void copyRawToFile(int rawId, String fileName);
 }
@@ -0,0 +1,183 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel copy helpers shared by the storage classes, through {@link BufferPool} buffers,
+ * or {@link FileChannel#transferTo(long, long, WritableByteChannel)} between two files.
+ */
+
+public final class StorageStreams {
+    private static final int WRITE_CHUNK_CHARS = 4 * 1024;
+    private StorageStreams() {
+    }
+
+    /**
+     * Copy all remaining bytes from source to target.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+        if (source instanceof FileChannel) {
+            return transfer((FileChannel) source, target);
+        }
+        if (target instanceof FileChannel) {
+            return transfer(source, (FileChannel) target);
+        }
+        return copyBuffered(source, target);
+    }
+
+    private static long copyBuffered(ReadableByteChannel source, WritableByteChannel target) throws IOException {
+        byte[] bytes = BufferPool.get().acquire(-1);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long copied = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    copied += target.write(buffer);
+                }
+                buffer.clear();
+            }
+            return copied;
+        } finally {
+            BufferPool.get().release(bytes);
+        }
+    }
+
+    /**
+     * Copy all remaining bytes from in to out with a pooled buffer.
+     *
+     * @param expectedLength the number of bytes to copy if known, otherwise a negative value.
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out, long expectedLength) throws IOException {
+        byte[] buffer = BufferPool.get().acquire(expectedLength);
+        try {
+            long copied = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                copied += read;
+            }
+            return copied;
+        } finally {
+            BufferPool.get().release(buffer);
+        }
+    }
+
+    /**
+     * Copy from the current position of source to the end of file with transferTo.
+     * transferTo may move less bytes than requested, so loop until done.
+     * If it stops making progress before the end, e.g. the target doesn't support it,
+     * the rest is copied with plain reads and writes.
+     */
+    public static long transfer(FileChannel source, WritableByteChannel target) throws IOException {
+        long position = source.position();
+        long size = source.size();
+        long copied = 0;
+        while (position + copied < size) {
+            long count = source.transferTo(position + copied, size - position - copied, target);
+            if (count <= 0) {
+                source.position(position + copied);
+                return copied + copyBuffered(source, target);
+            }
+            copied += count;
+        }
+        source.position(position + copied);
+        return copied;
+    }
+
+    /**
+     * Copy from source into the current position of target with transferFrom.
+     * The source size is unknown, stop when nothing more is transferred.
+     */
+    public static long transfer(ReadableByteChannel source, FileChannel target) throws IOException {
+        long position = target.position();
+        long copied = 0;
+        long count;
+        while ((count = target.transferFrom(source, position + copied, BufferPool.LARGE_BUFFER_SIZE)) > 0) {
+            copied += count;
+        }
+        target.position(position + copied);
+        return copied;
+    }
+
+    /**
+     * Write content through writer a chunk at a time.
+     * Writer.write(String) copies the whole string into a new char[] first, which doubles
+     * the heap footprint of a large content, here only a small chunk is allocated.
+     */
+    public static void write(Writer writer, String content) throws IOException {
+        char[] chunk = new char[Math.min(content.length(), WRITE_CHUNK_CHARS)];
+        for (int start = 0, length = content.length(); start < length; start += chunk.length) {
+            int end = Math.min(length, start + chunk.length);
+            content.getChars(start, end, chunk, 0);
+            writer.write(chunk, 0, end - start);
+        }
+    }
+
+    /**
+     * Wrap out so that closing the wrapper flushes but doesn't close out.
+     * Used to finish an encoding stream while keeping the file open, e.g. to sync it.
+     */
+    public static OutputStream nonClosing(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * Read the remaining bytes of buffer as a stream, without copying them.
+     */
+    public static InputStream newInputStream(final ByteBuffer buffer) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (!buffer.hasRemaining()) {
+                    return -1;
+                }
+                int count = Math.min(len, buffer.remaining());
+                buffer.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return buffer.remaining();
+            }
+        };
+    }
+
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
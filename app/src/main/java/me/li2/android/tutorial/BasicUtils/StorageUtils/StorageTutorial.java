@@ -6,6 +6,8 @@ import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.support.annotation.NonNull;
 import android.support.v4.provider.DocumentFile;
@@ -27,6 +29,7 @@ public class StorageTutorial extends SimpleListActivity {
     private static final String TAG = makeLogTag(StorageTutorial.class);
     private static final int REQUEST_CODE_FOR_STORAGE_PERMISSION = 1;
     private static final int REQUEST_CODE_TO_OPEN_DOCUMENT_TREE = 2;
+    private static final String PREF_KEY_DOCUMENT_TREE_URI = "storage_tutorial_document_tree_uri";
 
     @Override
     protected ArrayList<String> initListData() {
@@ -39,6 +42,7 @@ public class StorageTutorial extends SimpleListActivity {
         options.add("getExternalStoragePublicDirectory(type)");
         options.add("getSecondaryExternalStorageDirectory()");
         options.add("Storage Access Framework");
+        options.add("Storage Access Framework: walk the saved tree");
         return options;
     }
 
@@ -80,6 +84,16 @@ public class StorageTutorial extends SimpleListActivity {
             case 7:
                 startActivityForResult(new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE), REQUEST_CODE_TO_OPEN_DOCUMENT_TREE);
                 break;
+
+            case 8:
+                String treeUri = PreferenceManager.getDefaultSharedPreferences(this)
+                        .getString(PREF_KEY_DOCUMENT_TREE_URI, null);
+                if (treeUri != null) {
+                    walkDocumentTree(Uri.parse(treeUri));
+                } else {
+                    toastResult("select a directory with Storage Access Framework first");
+                }
+                break;
         }
     }
 
@@ -116,13 +130,49 @@ public class StorageTutorial extends SimpleListActivity {
             );
 
             // store the Uri so that can retrieve it on application startup, thus no need to ask again.
+            PreferenceManager.getDefaultSharedPreferences(this)
+                    .edit()
+                    .putString(PREF_KEY_DOCUMENT_TREE_URI, treeUri.toString())
+                    .apply();
 
             // do anything you want with the files and directories the Uri includes.
             //pickedDir.createDirectory("li2");
             toastResult(pickedDir.getName() + " selected");
+            walkDocumentTree(treeUri);
         }
     }
 
+    /**
+     * Enumerate the whole tree in background, with one query per directory, see {@link DocumentTree}.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void walkDocumentTree(final Uri treeUri) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final DocumentTree tree = new DocumentTree(StorageTutorial.this, treeUri);
+                final int[] counts = new int[2]; // directories, files
+                long start = SystemClock.uptimeMillis();
+                tree.walk(new DocumentTree.Visitor() {
+                    @Override
+                    public boolean visit(DocumentTree.Node node, int depth) {
+                        counts[node.isDirectory() ? 0 : 1]++;
+                        return true;
+                    }
+                });
+                final String result = counts[0] + " directories, " + counts[1] + " files, "
+                        + tree.getQueryCount() + " queries in " + (SystemClock.uptimeMillis() - start) + "ms";
+
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        toastResult(result);
+                    }
+                });
+            }
+        }).start();
+    }
+
     private void openAppSettingsPage() {
         // there is no intent to go directly to the Permissions screen,
         // you must open the application Settings page instead, then click the Permissions item.
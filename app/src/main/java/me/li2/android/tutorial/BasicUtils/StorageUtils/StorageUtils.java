@@ -6,17 +6,14 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Environment;
-import android.os.storage.StorageManager;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
 
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Scanner;
+
+import me.li2.android.tutorial.BasicUI.MainApplication;
 
 import static me.li2.android.tutorial.BasicUI.LogHelper.LOGE;
 import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
@@ -76,6 +73,42 @@ public class StorageUtils {
         }
     }
 
+    private static BulkFileCopier sBulkFileCopier;
+
+    private static synchronized BulkFileCopier getBulkFileCopier() {
+        if (sBulkFileCopier == null) {
+            sBulkFileCopier = new BulkFileCopier();
+        }
+        return sBulkFileCopier;
+    }
+
+    /**
+     * Copy all files under sourceDir, e.g. context.getFilesDir(), to folderName on the primary external storage,
+     * in parallel, see {@link BulkFileCopier}.
+     * @param listener called on the main thread with the aggregate progress, may be null.
+     * @return the running job, to cancel it or wait for it.
+     */
+    public static BulkFileCopier.Job exportFiles(Context context, File sourceDir, String folderName,
+                                                 BulkFileCopier.ProgressListener listener) {
+        File externalDir = new File(getPrimaryExternalStoragePath(context), folderName);
+        return getBulkFileCopier().copyDirectory(sourceDir, externalDir, listener);
+    }
+
+    /**
+     * Copy all files under folderName on the primary external storage to targetDir, in parallel.
+     * @see #exportFiles(Context, File, String, BulkFileCopier.ProgressListener)
+     */
+    public static BulkFileCopier.Job importFiles(Context context, String folderName, File targetDir,
+                                                 BulkFileCopier.ProgressListener listener) {
+        File externalDir = new File(getPrimaryExternalStoragePath(context), folderName);
+        return getBulkFileCopier().copyDirectory(externalDir, targetDir, listener);
+    }
+
+    private static String getPrimaryExternalStoragePath(Context context) {
+        String path = getExternalStoragePath(context, false);
+        return path != null ? path : Environment.getExternalStorageDirectory().getAbsolutePath();
+    }
+
     /**
      * Get secondary external storage path.
      * <p>
@@ -83,61 +116,12 @@ public class StorageUtils {
      * which doesn't exist.
      * <p>
      * System.getenv("SECONDARY_STORAGE") this method only works below Android 6.0, otherwise it returns null.
+     * <p>
+     * The result is cached by {@link StorageVolumeRegistry} until a media mount / unmount broadcast.
      * @return
      */
     public static String getSecondaryExternalStorageDirectory() {
-        final String MOUNTS_FILE_PATH = "/proc/mounts";
-        final String VOLD_FILE_PATH = "/dev/block/vold/";
-        final String SAMSUNG_VOLD_FILE_PATH = "/dev/block/vold/public";
-        final String SECONDARY_SDCARD_ID = "sd"; // depends on different phone or tablet
-        final String SAMSUNG_SECONDARY_SDCARD_ID = "/mnt/media_rw/";//"/storage/0000-006F"; // can't find a way to get Samsung secondary SDCARD path, hard coded temperately
-        final String ULMO_USB_ID = "/mnt/usbhost";//"/storage/0000-006F"; // can't find a way to get Samsung secondary SDCARD path, hard coded temperately
-
-        try {
-            File mountFile = new File(MOUNTS_FILE_PATH);
-            if (mountFile.exists()) {
-                Scanner scanner = new Scanner(mountFile);
-                final String internalSDCard = Environment.getExternalStorageDirectory().getAbsolutePath();
-
-                while (scanner.hasNext()) {
-                    String line = scanner.nextLine();
-                    Log.d(TAG, line);
-                    if (line.startsWith(VOLD_FILE_PATH)) {
-                        if (line.toLowerCase().indexOf(SAMSUNG_SECONDARY_SDCARD_ID) != -1) {// check Samsung first
-                            String[] elements = line.split(" ");
-                            if (elements.length >= 2) {
-                                if (!line.startsWith(SAMSUNG_VOLD_FILE_PATH)) {// not samsung KNOX device, check CalAmp or generic Samsung devices
-                                    if (!elements[1].toLowerCase().contains("extsd") && !elements[1].toLowerCase().contains("usbhost"))
-                                        continue;
-                                }
-                                String secondarySDCardPath = elements[1].replace(SAMSUNG_SECONDARY_SDCARD_ID, "/storage/");
-                                ;
-                                scanner.close();
-                                return secondarySDCardPath;
-                            }
-                        } else if (line.toLowerCase().indexOf(ULMO_USB_ID) != -1) {// check Ulmo Pro USB support first
-                            String[] elements = line.split(" ");
-                            if (elements.length >= 2) {
-                                String secondarySDCardPath = elements[1];
-                                scanner.close();
-                                return secondarySDCardPath;
-                            }
-                        } else if (line.toLowerCase().indexOf(SECONDARY_SDCARD_ID) != -1) {
-                            String[] elements = line.split(" ");
-                            if ((elements.length >= 2) && !elements[1].equals(internalSDCard)) {
-                                scanner.close();
-                                return elements[1];
-                            }
-                        }
-                    }
-                }
-                scanner.close();
-            }
-        } catch (Exception e) {
-            return "";
-        }
-
-        return "";
+        return StorageVolumeRegistry.get(MainApplication.getAppContext()).getSecondaryStoragePath();
     }
 
     /**
@@ -145,36 +129,10 @@ public class StorageUtils {
      * @param mContext
      * @param is_removable false to get primary external storage (also named built-in external storage);
      *                     true to get secondary external storage;
+     * The volume list is cached by {@link StorageVolumeRegistry} until a media mount / unmount broadcast.
      * @return
      */
     public static String getExternalStoragePath(Context mContext, boolean is_removable) {
-
-        StorageManager mStorageManager = (StorageManager) mContext.getSystemService(Context.STORAGE_SERVICE);
-        Class<?> storageVolumeClazz = null;
-        try {
-            storageVolumeClazz = Class.forName("android.os.storage.StorageVolume");
-            Method getVolumeList = mStorageManager.getClass().getMethod("getVolumeList");
-            Method getPath = storageVolumeClazz.getMethod("getPath");
-            Method isRemovable = storageVolumeClazz.getMethod("isRemovable");
-            Object result = getVolumeList.invoke(mStorageManager);
-            final int length = Array.getLength(result);
-            for (int i = 0; i < length; i++) {
-                Object storageVolumeElement = Array.get(result, i);
-                String path = (String) getPath.invoke(storageVolumeElement);
-                boolean removable = (Boolean) isRemovable.invoke(storageVolumeElement);
-                if (is_removable == removable) {
-                    return path;
-                }
-            }
-        } catch (ClassNotFoundException e) {
-            e.printStackTrace();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-        } catch (NoSuchMethodException e) {
-            e.printStackTrace();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return StorageVolumeRegistry.get(mContext).getPath(is_removable);
     }
 }
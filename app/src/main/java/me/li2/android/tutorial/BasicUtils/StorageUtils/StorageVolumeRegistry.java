@@ -0,0 +1,244 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Environment;
+import android.os.storage.StorageManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
+
+/**
+ * Cache of the storage volumes behind {@link StorageUtils#getExternalStoragePath(Context, boolean)},
+ * dropped when a media mount / unmount broadcast is received.
+ */
+
+public class StorageVolumeRegistry {
+    private static final String TAG = makeLogTag(StorageVolumeRegistry.class);
+
+    private static final String MOUNTS_FILE_PATH = "/proc/mounts";
+    private static final String VOLD_FILE_PATH = "/dev/block/vold/";
+    private static final String SAMSUNG_VOLD_FILE_PATH = "/dev/block/vold/public";
+    private static final String SECONDARY_SDCARD_ID = "sd"; // depends on different phone or tablet
+    private static final String SAMSUNG_SECONDARY_SDCARD_ID = "/mnt/media_rw/"; // can't find a way to get Samsung secondary SDCARD path, hard coded temperately
+    private static final String ULMO_USB_ID = "/mnt/usbhost"; // can't find a way to get Samsung secondary SDCARD path, hard coded temperately
+
+    private static StorageVolumeRegistry sInstance;
+
+    public static class Volume {
+        public final String mPath;
+        public final boolean mIsRemovable;
+
+        Volume(String path, boolean isRemovable) {
+            mPath = path;
+            mIsRemovable = isRemovable;
+        }
+    }
+
+    private final Context mAppContext;
+    private Method mGetVolumeList;
+    private Method mGetPath;
+    private Method mIsRemovable;
+    private boolean mMethodsResolved;
+    // null until loaded, or after invalidate()
+    private List<Volume> mVolumes;
+    private String mSecondaryStoragePath;
+
+    private final BroadcastReceiver mMediaReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            invalidate();
+        }
+    };
+
+    public static synchronized StorageVolumeRegistry get(Context context) {
+        if (sInstance == null) {
+            sInstance = new StorageVolumeRegistry(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private StorageVolumeRegistry(Context appContext) {
+        mAppContext = appContext;
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        filter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        filter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        filter.addAction(Intent.ACTION_MEDIA_EJECT);
+        // media broadcasts carry the mount point as a file:// Uri, they are not delivered without a data scheme.
+        filter.addDataScheme("file");
+        mAppContext.registerReceiver(mMediaReceiver, filter);
+    }
+
+    /**
+     * Drop the cached volumes, they are loaded again on next access.
+     */
+    public synchronized void invalidate() {
+        mVolumes = null;
+        mSecondaryStoragePath = null;
+    }
+
+    /**
+     * @return all storage volumes, empty if they can't be resolved.
+     */
+    public synchronized List<Volume> getVolumes() {
+        if (mVolumes == null) {
+            mVolumes = Collections.unmodifiableList(loadVolumes());
+        }
+        return mVolumes;
+    }
+
+    /**
+     * @param isRemovable false to get primary external storage (also named built-in external storage);
+     *                    true to get secondary external storage;
+     * @return path of the first volume matching isRemovable, or null
+     */
+    public String getPath(boolean isRemovable) {
+        for (Volume volume : getVolumes()) {
+            if (volume.mIsRemovable == isRemovable) {
+                return volume.mPath;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * See {@link StorageUtils#getSecondaryExternalStorageDirectory()}.
+     */
+    public synchronized String getSecondaryStoragePath() {
+        if (mSecondaryStoragePath == null) {
+            mSecondaryStoragePath = scanMounts();
+        }
+        return mSecondaryStoragePath;
+    }
+
+    private List<Volume> loadVolumes() {
+        List<Volume> volumes = new ArrayList<>();
+        StorageManager storageManager = (StorageManager) mAppContext.getSystemService(Context.STORAGE_SERVICE);
+        if (!resolveMethods(storageManager)) {
+            return volumes;
+        }
+
+        try {
+            Object result = mGetVolumeList.invoke(storageManager);
+            final int length = Array.getLength(result);
+            for (int i = 0; i < length; i++) {
+                Object storageVolumeElement = Array.get(result, i);
+                String path = (String) mGetPath.invoke(storageVolumeElement);
+                boolean removable = (Boolean) mIsRemovable.invoke(storageVolumeElement);
+                volumes.add(new Volume(path, removable));
+            }
+        } catch (InvocationTargetException e) {
+            e.printStackTrace();
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        return volumes;
+    }
+
+    private boolean resolveMethods(StorageManager storageManager) {
+        if (!mMethodsResolved) {
+            // resolved once, a failure is not retried either
+            mMethodsResolved = true;
+            try {
+                Class<?> storageVolumeClazz = Class.forName("android.os.storage.StorageVolume");
+                mGetVolumeList = storageManager.getClass().getMethod("getVolumeList");
+                mGetPath = storageVolumeClazz.getMethod("getPath");
+                mIsRemovable = storageVolumeClazz.getMethod("isRemovable");
+            } catch (ClassNotFoundException e) {
+                e.printStackTrace();
+            } catch (NoSuchMethodException e) {
+                e.printStackTrace();
+            }
+        }
+        return mGetVolumeList != null && mGetPath != null && mIsRemovable != null;
+    }
+
+    /**
+     * One pass over /proc/mounts, the fields are located with indexOf instead of
+     * splitting and lower-casing each line.
+     */
+    private static String scanMounts() {
+        File mountFile = new File(MOUNTS_FILE_PATH);
+        if (!mountFile.exists()) {
+            return "";
+        }
+
+        final String internalSDCard = Environment.getExternalStorageDirectory().getAbsolutePath();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mountFile));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith(VOLD_FILE_PATH)) {
+                    continue;
+                }
+
+                // the mount point is the 2nd field: "device mount_point type options ..."
+                int start = line.indexOf(' ');
+                if (start < 0) {
+                    continue;
+                }
+                int end = line.indexOf(' ', start + 1);
+                if (end < 0) {
+                    end = line.length();
+                }
+
+                if (containsIgnoreCase(line, SAMSUNG_SECONDARY_SDCARD_ID)) {// check Samsung first
+                    if (!line.startsWith(SAMSUNG_VOLD_FILE_PATH)) {// not samsung KNOX device, check CalAmp or generic Samsung devices
+                        if (!regionContainsIgnoreCase(line, start + 1, end, "extsd")
+                                && !regionContainsIgnoreCase(line, start + 1, end, "usbhost")) {
+                            continue;
+                        }
+                    }
+                    return line.substring(start + 1, end).replace(SAMSUNG_SECONDARY_SDCARD_ID, "/storage/");
+                } else if (containsIgnoreCase(line, ULMO_USB_ID)) {// check Ulmo Pro USB support first
+                    return line.substring(start + 1, end);
+                } else if (containsIgnoreCase(line, SECONDARY_SDCARD_ID)) {
+                    if (!line.regionMatches(start + 1, internalSDCard, 0, internalSDCard.length())
+                            || end - start - 1 != internalSDCard.length()) {
+                        return line.substring(start + 1, end);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Can not read " + MOUNTS_FILE_PATH + ": " + e.toString());
+        } catch (SecurityException e) {
+            Log.w(TAG, "Not allowed to read " + MOUNTS_FILE_PATH + ": " + e.toString());
+        } catch (RuntimeException e) {
+            // the scan is best effort, an unexpected line must not crash the caller
+            Log.w(TAG, "Can not scan " + MOUNTS_FILE_PATH + ": " + e.toString());
+        } finally {
+            StorageStreams.closeQuietly(reader);
+        }
+        return "";
+    }
+
+    private static boolean containsIgnoreCase(String text, String needle) {
+        return regionContainsIgnoreCase(text, 0, text.length(), needle);
+    }
+
+    private static boolean regionContainsIgnoreCase(String text, int start, int end, String needle) {
+        for (int i = start, last = end - needle.length(); i <= last; i++) {
+            if (text.regionMatches(true, i, needle, 0, needle.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
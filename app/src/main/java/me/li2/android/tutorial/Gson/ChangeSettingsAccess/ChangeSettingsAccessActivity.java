@@ -6,6 +6,7 @@ import android.view.MenuItem;
 
 import me.li2.android.tutorial.BasicUI.BasicFragmentContainerActivity;
 
+import static me.li2.android.tutorial.BasicUI.LogHelper.LOGE;
 import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
 
 /**
@@ -15,20 +16,76 @@ import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
 
 public class ChangeSettingsAccessActivity extends BasicFragmentContainerActivity {
     private static final String TAG = makeLogTag(ChangeSettingsAccessActivity.class);
+    private static final String STATE_CURRENT_NODE_ID = "current_node_id";
 
+    // null until loaded
     private SettingsAccessProvider mDataProvider;
+    private SettingsAccessProvider.LoadTask mLoadTask;
+    // the node shown, kept across configuration changes
+    private int mCurrentNodeId;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mDataProvider = new SettingsAccessProvider(this);
+        if (mFragment instanceof ChangeSettingsAccessFragment) {
+            // a fragment restored after a configuration change isn't created by createFragment()
+            ((ChangeSettingsAccessFragment) mFragment).setOnSettingsAccessItemClickListener(mOnSettingsAccessItemClickListener);
+            ((ChangeSettingsAccessFragment) mFragment).setLoading(true);
+        }
+        if (savedInstanceState != null) {
+            mCurrentNodeId = savedInstanceState.getInt(STATE_CURRENT_NODE_ID);
+        }
 
-        SettingsAccessItem rootItem = mDataProvider.getRootItem();
-        if (rootItem != null) {
-            updateView(rootItem);
+        // the store and the Json are read off the main thread, the screen shows up right away.
+        mLoadTask = SettingsAccessProvider.load(this, mOnLoadListener);
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putInt(STATE_CURRENT_NODE_ID, mCurrentNodeId);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // also on a configuration change, the new activity starts its own load
+        if (mLoadTask != null) {
+            mLoadTask.cancel();
+            mLoadTask = null;
         }
     }
 
+    private SettingsAccessProvider.OnLoadListener mOnLoadListener = new SettingsAccessProvider.OnLoadListener() {
+        @Override
+        public void onLoadProgress(int parsedNodes) {
+            getSupportActionBar().setSubtitle("Loading " + parsedNodes + " settings...");
+        }
+
+        @Override
+        public void onLoaded(SettingsAccessProvider provider) {
+            mLoadTask = null;
+            mDataProvider = provider;
+            getSupportActionBar().setSubtitle(null);
+            if (mFragment instanceof ChangeSettingsAccessFragment) {
+                ((ChangeSettingsAccessFragment) mFragment).setLoading(false);
+            }
+
+            SettingsAccessItem item = mDataProvider.getItem(mCurrentNodeId);
+            updateView(item != null ? item : mDataProvider.getRootItem());
+        }
+
+        @Override
+        public void onLoadFailed(RuntimeException error) {
+            mLoadTask = null;
+            getSupportActionBar().setSubtitle("Failed to load settings");
+            if (mFragment instanceof ChangeSettingsAccessFragment) {
+                ((ChangeSettingsAccessFragment) mFragment).setLoading(false);
+            }
+            LOGE(TAG, "Failed to load settings access: " + error.getMessage(), error);
+        }
+    };
+
     @Override
     protected Fragment createFragment() {
         ChangeSettingsAccessFragment fragment = new ChangeSettingsAccessFragment();
@@ -41,7 +98,7 @@ public class ChangeSettingsAccessActivity extends BasicFragmentContainerActivity
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case android.R.id.home:
-                SettingsAccessItem prevItem = mDataProvider.getPrevItem();
+                SettingsAccessItem prevItem = mDataProvider != null ? mDataProvider.getPrevItem() : null;
 
                 if (prevItem == null) {
                     finish();
@@ -67,16 +124,20 @@ public class ChangeSettingsAccessActivity extends BasicFragmentContainerActivity
                 @Override
                 public void onCheckedChanged(SettingsAccessItem item, boolean checked) {
                     mDataProvider.updateItem(item, checked);
+                    if (mFragment != null && mFragment instanceof ChangeSettingsAccessFragment) {
+                        ((ChangeSettingsAccessFragment) mFragment).notifyCheckedStatesChanged();
+                    }
                 }
             };
 
     private void updateView(SettingsAccessItem item) {
         if (item != null) {
             mDataProvider.setCurrentItem(item);
-            getSupportActionBar().setTitle(item.mTitle);
+            mCurrentNodeId = item.getNodeId();
+            getSupportActionBar().setTitle(item.getTitle());
 
             if (mFragment != null && mFragment instanceof ChangeSettingsAccessFragment) {
-                ((ChangeSettingsAccessFragment) mFragment).setItems(item.mSubItems);
+                ((ChangeSettingsAccessFragment) mFragment).setItems(item.getSubItems());
             }
         }
     }
@@ -2,8 +2,11 @@ package me.li2.android.tutorial.Gson.ChangeSettingsAccess;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -12,20 +15,39 @@ import android.view.ViewGroup;
 import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import me.li2.android.tutorial.R;
 
 /**
+ * The items of the current level, flattened with the sub-items of the expanded ones (long press to expand).
+ * <p>
+ * After a check change, the rows are read again and diffed with {@link DiffUtil} on a background thread,
+ * only the rows whose checked state changed are rebound, with a payload which only updates the checkbox.
+ *
  * Created by weiyi on 24/04/2017.
  * https://github.com/li2
  */
 
 public class ChangeSettingsAccessFragment extends Fragment {
+    // a partially checked item is drawn unchecked but faded, so that a tap checks its whole subtree
+    private static final float PARTIAL_CHECKBOX_ALPHA = 0.4f;
+    private static final Object PAYLOAD_CHECKED_STATE = new Object();
+    private static final Executor sDiffExecutor = Executors.newSingleThreadExecutor();
+
     private SettingsAccessAdapter mAdapter;
+    private ProgressBar mProgressBar;
+    private boolean mLoading;
     private OnSettingsAccessItemClickListener mOnSettingsAccessItemClickListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
 
     public interface OnSettingsAccessItemClickListener {
         void onItemClick(SettingsAccessItem item);
@@ -45,34 +67,177 @@ public class ChangeSettingsAccessFragment extends Fragment {
         RecyclerView recyclerView = (RecyclerView) view.findViewById(R.id.settings_access_recyclerView);
         recyclerView.setLayoutManager(new LinearLayoutManager(getContext(), LinearLayoutManager.VERTICAL, false));
         recyclerView.setAdapter(mAdapter);
+        mProgressBar = (ProgressBar) view.findViewById(R.id.settings_access_progressBar);
+        mProgressBar.setVisibility(mLoading ? View.VISIBLE : View.GONE);
         return view;
     }
 
+    /**
+     * Show a progress bar while the items are being loaded, can be called before the view is created.
+     */
+    public void setLoading(boolean loading) {
+        mLoading = loading;
+        if (mProgressBar != null) {
+            mProgressBar.setVisibility(loading ? View.VISIBLE : View.GONE);
+        }
+    }
+
+    /**
+     * Show another level, the expanded items are collapsed.
+     */
     public void setItems(ArrayList<SettingsAccessItem> items) {
         mAdapter.setItems(items);
     }
 
+    /**
+     * Call after the checked status of some items changed, e.g. by {@link SettingsAccessProvider#updateItem(SettingsAccessItem, boolean)}.
+     */
+    public void notifyCheckedStatesChanged() {
+        mAdapter.refreshRows();
+    }
+
     public void setOnSettingsAccessItemClickListener(OnSettingsAccessItemClickListener l) {
         mOnSettingsAccessItemClickListener = l;
     }
 
 
+    /**
+     * Row ---------------------------------------------------------------------------------------
+     * What a row shows, copied when the rows are built, so that the diff compares two snapshots.
+     */
+    private static class Row {
+        final SettingsAccessItem mItem;
+        final int mDepth;
+        final int mCheckedState;
+        final boolean mExpanded;
+
+        Row(SettingsAccessItem item, int depth, boolean expanded) {
+            mItem = item;
+            mDepth = depth;
+            mCheckedState = item.getCheckedState();
+            mExpanded = expanded;
+        }
+    }
+
+    private static class RowDiffCallback extends DiffUtil.Callback {
+        private final List<Row> mOldRows;
+        private final List<Row> mNewRows;
+
+        RowDiffCallback(List<Row> oldRows, List<Row> newRows) {
+            mOldRows = oldRows;
+            mNewRows = newRows;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldRows.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewRows.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return mOldRows.get(oldItemPosition).mItem == mNewRows.get(newItemPosition).mItem;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            Row oldRow = mOldRows.get(oldItemPosition);
+            Row newRow = mNewRows.get(newItemPosition);
+            return oldRow.mCheckedState == newRow.mCheckedState && oldRow.mExpanded == newRow.mExpanded;
+        }
+
+        @Override
+        public Object getChangePayload(int oldItemPosition, int newItemPosition) {
+            Row oldRow = mOldRows.get(oldItemPosition);
+            Row newRow = mNewRows.get(newItemPosition);
+            // null: rebind the whole row
+            return oldRow.mExpanded == newRow.mExpanded ? PAYLOAD_CHECKED_STATE : null;
+        }
+    }
+
+
     /**
      * Adapter -------------------------------------------------------------------------------------
      */
     private class SettingsAccessAdapter extends RecyclerView.Adapter<SettingsAccessViewHolder> {
         private Context mContext;
         private ArrayList<SettingsAccessItem> mItems;
+        private List<Row> mRows = new ArrayList<>();
+        // node ids of the expanded items
+        private final Set<Integer> mExpandedNodes = new HashSet<>();
+        // bumped for every new list of rows, a diff computed for an older one is dropped
+        private int mGeneration;
 
         public SettingsAccessAdapter(Context context) {
             mContext = context;
+            setHasStableIds(true);
         }
 
         public void setItems(ArrayList<SettingsAccessItem> items) {
             mItems = items;
+            mExpandedNodes.clear();
+            mGeneration++;
+            mRows = buildRows();
             notifyDataSetChanged();
         }
 
+        public void toggleExpanded(SettingsAccessItem item) {
+            if (!mExpandedNodes.remove(item.getNodeId())) {
+                mExpandedNodes.add(item.getNodeId());
+            }
+            refreshRows();
+        }
+
+        // Build the new rows here, on the main thread where the items are changed, and diff them in the background.
+        public void refreshRows() {
+            final List<Row> oldRows = mRows;
+            final List<Row> newRows = buildRows();
+            final int generation = ++mGeneration;
+            sDiffExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new RowDiffCallback(oldRows, newRows), false);
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == mGeneration) {
+                                mRows = newRows;
+                                result.dispatchUpdatesTo(SettingsAccessAdapter.this);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        private List<Row> buildRows() {
+            List<Row> rows = new ArrayList<>();
+            if (mItems != null) {
+                addRows(rows, mItems, 0);
+            }
+            return rows;
+        }
+
+        private void addRows(List<Row> rows, List<SettingsAccessItem> items, int depth) {
+            for (SettingsAccessItem item : items) {
+                boolean expanded = item.hasSubitems() && mExpandedNodes.contains(item.getNodeId());
+                rows.add(new Row(item, depth, expanded));
+                if (expanded) {
+                    // recursion
+                    addRows(rows, item.getSubItems(), depth + 1);
+                }
+            }
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mRows.get(position).mItem.getNodeId();
+        }
+
         @Override
         public SettingsAccessViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
             View itemView = LayoutInflater.from(mContext).inflate(R.layout.view_settings_access_item, parent, false);
@@ -81,23 +246,34 @@ public class ChangeSettingsAccessFragment extends Fragment {
 
         @Override
         public void onBindViewHolder(SettingsAccessViewHolder holder, int position) {
-            holder.bindSettingsAccessItem(mItems.get(position), position);
+            holder.bindSettingsAccessItem(mRows.get(position), position);
+        }
+
+        @Override
+        public void onBindViewHolder(SettingsAccessViewHolder holder, int position, List<Object> payloads) {
+            if (payloads.contains(PAYLOAD_CHECKED_STATE)) {
+                holder.bindCheckedState(mRows.get(position));
+            } else {
+                super.onBindViewHolder(holder, position, payloads);
+            }
         }
 
         @Override
         public int getItemCount() {
-            return (mItems != null) ? mItems.size() : 0;
+            return mRows.size();
         }
     }
 
     /**
      * View Holder ---------------------------------------------------------------------------------
      */
-    private class SettingsAccessViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+    private class SettingsAccessViewHolder extends RecyclerView.ViewHolder
+            implements View.OnClickListener, View.OnLongClickListener {
         private SettingsAccessItem mItem;
         private CheckBox mAdminCheckBox;
         private TextView mTitleView;
         private ImageView mNextArrowView;
+        private final int mPaddingLeft;
 
         public SettingsAccessViewHolder(View itemView) {
             super(itemView);
@@ -105,18 +281,30 @@ public class ChangeSettingsAccessFragment extends Fragment {
             mAdminCheckBox.setOnCheckedChangeListener(mOnCheckedChangeListener);
             mTitleView = (TextView) itemView.findViewById(R.id.settings_access_title_textView);
             mNextArrowView = (ImageView) itemView.findViewById(R.id.settings_access_next_arrowView);
+            mPaddingLeft = itemView.getPaddingLeft();
             itemView.setOnClickListener(this);
+            itemView.setOnLongClickListener(this);
         }
 
-        public void bindSettingsAccessItem(SettingsAccessItem item, int position) {
+        public void bindSettingsAccessItem(Row row, int position) {
+            SettingsAccessItem item = row.mItem;
             if (item != null) {
                 mItem = item;
-                mAdminCheckBox.setChecked(item.isAdminAccessOnly());
-                mTitleView.setText(item.mTitle);
+                bindCheckedState(row);
+                mTitleView.setText(item.getTitle());
                 mNextArrowView.setVisibility(item.hasSubitems() ? View.VISIBLE : View.INVISIBLE);
+                mNextArrowView.setRotation(row.mExpanded ? 90 : 0);
+                // indent the sub-items of expanded items
+                itemView.setPadding(mPaddingLeft * (row.mDepth + 1), itemView.getPaddingTop(),
+                        itemView.getPaddingRight(), itemView.getPaddingBottom());
             }
         }
 
+        public void bindCheckedState(Row row) {
+            mAdminCheckBox.setChecked(row.mCheckedState == SettingsAccessItem.STATE_CHECKED);
+            mAdminCheckBox.setAlpha(row.mCheckedState == SettingsAccessItem.STATE_PARTIAL ? PARTIAL_CHECKBOX_ALPHA : 1f);
+        }
+
         @Override
         public void onClick(View view) {
             if (mItem.hasSubitems()) {
@@ -126,6 +314,15 @@ public class ChangeSettingsAccessFragment extends Fragment {
             }
         }
 
+        @Override
+        public boolean onLongClick(View view) {
+            if (mItem.hasSubitems()) {
+                mAdapter.toggleExpanded(mItem);
+                return true;
+            }
+            return false;
+        }
+
         private CompoundButton.OnCheckedChangeListener mOnCheckedChangeListener =
                 new CompoundButton.OnCheckedChangeListener() {
                     @Override
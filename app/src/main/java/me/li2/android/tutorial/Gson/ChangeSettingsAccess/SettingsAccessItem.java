@@ -1,77 +1,104 @@
 package me.li2.android.tutorial.Gson.ChangeSettingsAccess;
 
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.preference.PreferenceManager;
-
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.util.ArrayList;
 
+import me.li2.android.tutorial.BasicUtils.StorageUtils.KeyValueStore;
+
 /**
+ * A node of {@link SettingsAccessTree}, as seen by the UI and {@link SettingsAccessProvider}.
+ * It only holds the tree and the node, the checked status and the sub-item counters live in the tree arrays.
+ * There is one shared item per node, see {@link SettingsAccessTree#getItem(int)}.
+ *
  * Created by weiyi on 24/04/2017.
  * https://github.com/li2
  */
 
 public class SettingsAccessItem {
-    private static final String PREF_KEY_PREFIX = "settings_access_provider_";
-    private static final String JSON_OBJECT_KEY_TITLE = "title";
-    private static final String JSON_OBJECT_KEY_PREF_KEY = "pref_key";
-    private static final String JSON_OBJECT_KEY_ADMIN_ONLY = "is_only_admin_access";
-
-    private Context mContext;
-    private SharedPreferences mPreferences;
-    public String mTitle = "";
-    private String mPrefKey = "";
-    private boolean mIsAdminAccessOnly = true;
-    public SettingsAccessItem mParentItem;
-    public ArrayList<SettingsAccessItem> mSubItems = new ArrayList<>();
-
-
-    public SettingsAccessItem(Context context, JSONObject jsonObject) throws JSONException {
-        mContext = context;
-        mPreferences = PreferenceManager.getDefaultSharedPreferences(mContext);
-
-        if (jsonObject.has(JSON_OBJECT_KEY_TITLE)) {
-            mTitle = jsonObject.getString(JSON_OBJECT_KEY_TITLE);
-        }
-        if (jsonObject.has(JSON_OBJECT_KEY_PREF_KEY)) {
-            mPrefKey = PREF_KEY_PREFIX + jsonObject.getString(JSON_OBJECT_KEY_PREF_KEY);
-        }
+    static final String PREF_KEY_PREFIX = "settings_access_provider_";
 
-        boolean defaultAdminAccessValue = true;
-        if (jsonObject.has(JSON_OBJECT_KEY_ADMIN_ONLY)) {
-            defaultAdminAccessValue = jsonObject.getBoolean(JSON_OBJECT_KEY_ADMIN_ONLY);
-        }
-        if (!mPreferences.contains(mPrefKey)) {
-            mPreferences
-                    .edit()
-                    .putBoolean(mPrefKey, defaultAdminAccessValue)
-                    .apply();
-        } else {
-            defaultAdminAccessValue = mPreferences.getBoolean(mPrefKey, defaultAdminAccessValue);
-        }
+    // checked state for rendering, see getCheckedState()
+    public static final int STATE_UNCHECKED = 0;
+    public static final int STATE_PARTIAL = 1;
+    public static final int STATE_CHECKED = 2;
+
+    private final SettingsAccessTree mTree;
+    private final int mNode;
+
+
+    SettingsAccessItem(SettingsAccessTree tree, int node) {
+        mTree = tree;
+        mNode = node;
+    }
+
+    /**
+     * @return the node of the item in the tree, stable for the life of the tree.
+     */
+    public int getNodeId() {
+        return mNode;
+    }
 
-        mIsAdminAccessOnly = defaultAdminAccessValue;
-        mSubItems = new ArrayList<>();
+    public String getTitle() {
+        return mTree.getTitle(mNode);
+    }
+
+    /**
+     * @return null for the root item.
+     */
+    public SettingsAccessItem getParentItem() {
+        int parent = mTree.getParent(mNode);
+        return parent != SettingsAccessTree.NO_NODE ? mTree.getItem(parent) : null;
     }
 
     public boolean hasSubitems() {
-        return mSubItems != null && mSubItems.size() > 0;
+        return mTree.getChildCount(mNode) > 0;
+    }
+
+    /**
+     * @return a new list of the shared sub-items.
+     */
+    public ArrayList<SettingsAccessItem> getSubItems() {
+        ArrayList<SettingsAccessItem> subItems = new ArrayList<>(mTree.getChildCount(mNode));
+        for (int child = mTree.getFirstChild(mNode); child != SettingsAccessTree.NO_NODE; child = mTree.getNextSibling(child)) {
+            subItems.add(mTree.getItem(child));
+        }
+        return subItems;
     }
 
     public boolean isAdminAccessOnly() {
-        return mIsAdminAccessOnly;
+        return mTree.isChecked(mNode);
+    }
+
+    /**
+     * @return STATE_CHECKED if the item is checked, STATE_PARTIAL if it isn't but some of its
+     * descendants are, STATE_UNCHECKED otherwise. O(1), from the sub-item counters.
+     */
+    public int getCheckedState() {
+        return mTree.getCheckedState(mNode);
+    }
+
+    public boolean areAllSubItemsChecked() {
+        return mTree.areAllChildrenChecked(mNode);
     }
 
     public void setAdminAccessOnly(boolean adminAccessOnly) {
-        if (mIsAdminAccessOnly != adminAccessOnly) {
-            mIsAdminAccessOnly = adminAccessOnly;
-            mPreferences
-                    .edit()
-                    .putBoolean(mPrefKey, adminAccessOnly)
-                    .apply();
+        KeyValueStore.Editor editor = mTree.getStore().edit();
+        if (setAdminAccessOnly(adminAccessOnly, editor)) {
+            editor.apply();
         }
     }
+
+    /**
+     * Change the value in memory and add it to batch, it's saved when the batch is applied.
+     * @return true if the value changed.
+     */
+    public boolean setAdminAccessOnly(boolean adminAccessOnly, KeyValueStore.Editor batch) {
+        return mTree.setChecked(mNode, adminAccessOnly, batch);
+    }
+
+    /**
+     * Set all the descendants at once, the changed ones are added to batch.
+     */
+    public void setDescendantsAdminAccessOnly(boolean adminAccessOnly, KeyValueStore.Editor batch) {
+        mTree.setDescendantsChecked(mNode, adminAccessOnly, batch);
+    }
 }
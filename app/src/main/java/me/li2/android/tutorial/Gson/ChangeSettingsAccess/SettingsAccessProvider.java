@@ -1,18 +1,32 @@
 package me.li2.android.tutorial.Gson.ChangeSettingsAccess;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.google.gson.stream.JsonReader;
 
-import java.util.ArrayList;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import me.li2.android.tutorial.R;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.AtomicFileWriter;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.BinaryKeyValueStore;
 import me.li2.android.tutorial.BasicUtils.StorageUtils.InternalStorage;
-import me.li2.android.tutorial.BasicUtils.ResourceUtils;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.KeyValueStore;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.SharedPreferencesKeyValueStore;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.StorageStreams;
 
-import static me.li2.android.tutorial.BasicUI.LogHelper.LOGE;
 import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
 
 /**
@@ -24,66 +38,275 @@ import static me.li2.android.tutorial.BasicUI.LogHelper.makeLogTag;
 
 public class SettingsAccessProvider {
     private static final String TAG = makeLogTag(SettingsAccessProvider.class);
+    private static final String STORE_DIRECTORY_NAME = "settings_access_store";
+    private static final String SNAPSHOT_FILE_NAME = "settings_access_tree.bin";
+    // one store per process, its log must not be opened twice
+    private static KeyValueStore sStore;
+    // one load at a time, a load started after a configuration change waits for the cancelled one
+    private static final Executor sLoadExecutor = Executors.newSingleThreadExecutor();
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     private Context mContext;
     private InternalStorage mStorage;
-    private String mJsonString;
-    private ArrayList<SettingsAccessItem> mAllItems = new ArrayList<>();
+    private KeyValueStore mStore;
+    private SettingsAccessTree mTree;
     private SettingsAccessItem mCurrentItem;
 
+    public interface OnLoadListener {
+        /**
+         * Number of settings parsed so far, only called when the Json is parsed, not for a snapshot.
+         */
+        void onLoadProgress(int parsedNodes);
+
+        /**
+         * The tree is loaded, {@link #getRootItem()} can be shown.
+         */
+        void onLoaded(SettingsAccessProvider provider);
+
+        /**
+         * The load threw, there is no provider to show. Called instead of {@link #onLoaded(SettingsAccessProvider)}.
+         */
+        void onLoadFailed(RuntimeException error);
+    }
+
+    /**
+     * A load started by {@link #load(Context, OnLoadListener)}.
+     */
+    public static class LoadTask {
+        // read by the loader thread, which stops parsing once it's set
+        private volatile boolean mCancelled;
+        // only used on the main thread
+        private OnLoadListener mListener;
+
+        private LoadTask(OnLoadListener listener) {
+            mListener = listener;
+        }
+
+        /**
+         * Stop the load, the listener isn't called any more. Call on the main thread, e.g. in onDestroy().
+         */
+        public void cancel() {
+            mCancelled = true;
+            mListener = null;
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+
+    /**
+     * Create a provider off the main thread, the store is opened and the tree loaded on a loader thread.
+     * The listener is called on the main thread.
+     */
+    public static LoadTask load(Context context, OnLoadListener listener) {
+        final Context appContext = context.getApplicationContext();
+        final LoadTask task = new LoadTask(listener);
+        sLoadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (task.isCancelled()) {
+                    return;
+                }
+                final SettingsAccessProvider provider;
+                try {
+                    provider = new SettingsAccessProvider(appContext, new SettingsAccessTree.ParseListener() {
+                        @Override
+                        public boolean onProgress(final int parsedNodes) {
+                            sMainHandler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (task.mListener != null) {
+                                        task.mListener.onLoadProgress(parsedNodes);
+                                    }
+                                }
+                            });
+                            return !task.isCancelled();
+                        }
+                    });
+                } catch (final RuntimeException e) {
+                    // otherwise the task just ends, and the listener waits forever
+                    Log.e(TAG, "failed to load settings access: " + e.toString());
+                    sMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (task.mListener != null) {
+                                task.mListener.onLoadFailed(e);
+                            }
+                        }
+                    });
+                    return;
+                }
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (task.mListener != null) {
+                            task.mListener.onLoaded(provider);
+                        }
+                    }
+                });
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Reads the store and the tree before returning, prefer {@link #load(Context, OnLoadListener)} on the main thread.
+     */
     public SettingsAccessProvider(Context context) {
+        this(context, null);
+    }
+
+    private SettingsAccessProvider(Context context, SettingsAccessTree.ParseListener parseListener) {
         mContext = context;
         mStorage = new InternalStorage(mContext);
-        mJsonString = ResourceUtils.readRawFile(mContext, R.raw.settings_access_data);;
+        mStore = getStore(mContext);
+
+        // the Json only changes with the app, parse it once per install and keep a binary snapshot of the tree.
+        long dataVersion = getDataVersion();
+        mTree = loadSnapshot(dataVersion);
+        if (mTree == null) {
+            mTree = parseJson(parseListener);
+            if (mTree != null) {
+                saveSnapshot(mTree, dataVersion);
+            }
+        }
+    }
+
+    // changes each time the app is installed or updated, so a snapshot never outlives its Json.
+    private long getDataVersion() {
         try {
-            JSONObject jsonBody = new JSONObject(mJsonString);
-            JSONObject settingsJsonObject = jsonBody.getJSONObject("settings_access");
-            parseItems(null, mAllItems, settingsJsonObject);
-        } catch (JSONException e) {
-            LOGE(TAG, "failed to parse JSON: " + e.getMessage());
-            e.printStackTrace();
+            return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            return 0;
         }
     }
 
-    public SettingsAccessItem getRootItem() {
-        if (mAllItems != null && mAllItems.size() > 0) {
-            return mAllItems.get(0);
+    private SettingsAccessTree loadSnapshot(long dataVersion) {
+        if (!mStorage.isFileExist(SNAPSHOT_FILE_NAME)) {
+            return null;
         }
-        return null;
+        ByteBuffer snapshot = mStorage.mapFile(SNAPSHOT_FILE_NAME);
+        return snapshot != null ? SettingsAccessTree.readSnapshot(snapshot, dataVersion, mStore) : null;
     }
 
-    public SettingsAccessItem getPrevItem() {
-        if (mCurrentItem != null) {
-            return mCurrentItem.mParentItem;
+    private void saveSnapshot(SettingsAccessTree tree, long dataVersion) {
+        AtomicFileWriter snapshotFile = new AtomicFileWriter(mStorage.getFile(SNAPSHOT_FILE_NAME));
+        FileOutputStream out = null;
+        try {
+            out = snapshotFile.startWrite();
+            tree.writeSnapshot(out, dataVersion);
+            snapshotFile.finishWrite(out);
+        } catch (IOException e) {
+            snapshotFile.failWrite(out);
+            Log.e(TAG, "failed to save settings access snapshot: " + e.getMessage());
+        }
+    }
+
+    // Logs with Log instead of LOGE, this may run on the loader thread where a Toast can't be shown.
+    private SettingsAccessTree parseJson(SettingsAccessTree.ParseListener parseListener) {
+        // stream the raw resource through JsonReader, no String copy of the file and no JSONObject tree.
+        JsonReader reader = null;
+        try {
+            reader = new JsonReader(new InputStreamReader(
+                    mContext.getResources().openRawResource(R.raw.settings_access_data), "UTF-8"));
+            return SettingsAccessTree.parse(reader, mStore, parseListener);
+        } catch (InterruptedIOException e) {
+            // cancelled
+        } catch (IOException | IllegalStateException e) {
+            // IllegalStateException: unexpected token
+            Log.e(TAG, "failed to parse JSON: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            StorageStreams.closeQuietly(reader);
         }
         return null;
     }
 
-    public void setCurrentItem(SettingsAccessItem currentItem) {
-        mCurrentItem = currentItem;
+    /**
+     * Settings access values are kept in a {@link BinaryKeyValueStore}, so that a tree update is a log append
+     * instead of rewriting the whole SharedPreferences XML file.
+     * Values saved by older versions in the default SharedPreferences are moved over the first time.
+     */
+    static synchronized KeyValueStore getStore(Context context) {
+        if (sStore == null) {
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+            try {
+                BinaryKeyValueStore store = new BinaryKeyValueStore(
+                        new InternalStorage(context).getFile(STORE_DIRECTORY_NAME));
+                if (store.size() == 0) {
+                    migrateFromPreferences(preferences, store);
+                }
+                sStore = store;
+            } catch (IOException e) {
+                Log.e(TAG, "failed to open settings access store: " + e.getMessage());
+                sStore = new SharedPreferencesKeyValueStore(preferences);
+            }
+        }
+        return sStore;
     }
 
-    // should be same with Json file
-    private static final String JSON_OBJECT_KEY_HAS_SUBITEMS = "has_subitems";
-    private static final String JSON_OBJECT_KEY_ITEMS = "items";
+    private static void migrateFromPreferences(SharedPreferences preferences, KeyValueStore store) {
+        KeyValueStore.Editor storeEditor = store.edit();
+        SharedPreferences.Editor preferencesEditor = preferences.edit();
+        boolean found = false;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (entry.getKey().startsWith(SettingsAccessItem.PREF_KEY_PREFIX) && entry.getValue() instanceof Boolean) {
+                storeEditor.putBoolean(entry.getKey(), (Boolean) entry.getValue());
+                preferencesEditor.remove(entry.getKey());
+                found = true;
+            }
+        }
+        // keep the old values until they're safely in the store
+        if (found && storeEditor.commit()) {
+            preferencesEditor.apply();
+        }
+    }
 
-    private void parseItems(SettingsAccessItem parentItem, ArrayList<SettingsAccessItem> items, JSONObject settingJsonObject)
-            throws JSONException {
-        SettingsAccessItem item = new SettingsAccessItem(mContext, settingJsonObject);
-        item.mParentItem = parentItem;
-        items.add(item);
+    public SettingsAccessItem getRootItem() {
+        return mTree != null ? mTree.getItem(0) : null;
+    }
 
-        boolean hasSubItems = settingJsonObject.getBoolean(JSON_OBJECT_KEY_HAS_SUBITEMS);
-        if (hasSubItems) {
-            JSONArray settingJsonArray = settingJsonObject.getJSONArray(JSON_OBJECT_KEY_ITEMS);
-            for (int i = 0; i < settingJsonArray.length(); i++) {
-                // recursion
-                parseItems(item, item.mSubItems, settingJsonArray.getJSONObject(i));
-            }
-        } else {
-            // exit recursion if has no subitems
-            return;
+    /**
+     * @param nodeId see {@link SettingsAccessItem#getNodeId()}, e.g. saved across a configuration change.
+     * @return null if the tree has no such node.
+     */
+    public SettingsAccessItem getItem(int nodeId) {
+        return mTree != null && nodeId >= 0 && nodeId < mTree.size() ? mTree.getItem(nodeId) : null;
+    }
+
+    /**
+     * Is the setting admin only, without walking the tree.
+     *
+     * @param prefKey the pref_key of the Json.
+     * @return true for an unknown setting too, it's restricted until it's in the tree.
+     */
+    public boolean isAdminOnly(String prefKey) {
+        return isNodeAdminOnly(mTree != null ? mTree.findNodeByPrefKey(prefKey) : SettingsAccessTree.NO_NODE);
+    }
+
+    /**
+     * @param path titles from a child of the root down to the setting, e.g. "Connections/WLAN".
+     * @see #isAdminOnly(String)
+     */
+    public boolean isAdminOnlyAtPath(String path) {
+        return isNodeAdminOnly(mTree != null ? mTree.findNodeByPath(path) : SettingsAccessTree.NO_NODE);
+    }
+
+    // the tree holds the same checked status as the store, updateItem changes both.
+    private boolean isNodeAdminOnly(int node) {
+        return node == SettingsAccessTree.NO_NODE || mTree.isChecked(node);
+    }
+
+    public SettingsAccessItem getPrevItem() {
+        if (mCurrentItem != null) {
+            return mCurrentItem.getParentItem();
         }
+        return null;
+    }
+
+    public void setCurrentItem(SettingsAccessItem currentItem) {
+        mCurrentItem = currentItem;
     }
 
     private String readJsonFile(String fileName) {
@@ -95,39 +318,62 @@ public class SettingsAccessProvider {
     }
 
     /**
-     * Update item checked status.
+     * Listen to the saved checked status, called once per {@link #updateItem(SettingsAccessItem, boolean)}
+     * with the pref keys of all the items it changed. The saved partial states show up too, with a "_partial"
+     * suffix, as do the defaults of a level when it's first opened.
+     */
+    public void registerOnChangeListener(KeyValueStore.OnChangeListener listener) {
+        mStore.registerOnChangeListener(listener);
+    }
+
+    public void unregisterOnChangeListener(KeyValueStore.OnChangeListener listener) {
+        mStore.unregisterOnChangeListener(listener);
+    }
+
+    /**
+     * Start a batch to group several {@link #updateItem(SettingsAccessItem, boolean, KeyValueStore.Editor)}
+     * into a single write, it's saved when applied or committed.
+     */
+    public KeyValueStore.Editor beginBatch() {
+        return mStore.edit();
+    }
+
+    /**
+     * Update item checked status, the changes of the whole tree are saved in one write.
      */
     public void updateItem(SettingsAccessItem selectedSubItem, boolean checked) {
+        KeyValueStore.Editor batch = beginBatch();
+        updateItem(selectedSubItem, checked, batch);
+        batch.apply();
+    }
+
+    /**
+     * Update item checked status in memory, the changes are saved with batch.
+     */
+    public void updateItem(SettingsAccessItem selectedSubItem, boolean checked, KeyValueStore.Editor batch) {
         // update itself
-        selectedSubItem.setAdminAccessOnly(checked);
+        selectedSubItem.setAdminAccessOnly(checked, batch);
 
         // update parent-items
-        updateParentItemsCheckedStatus(selectedSubItem);
+        updateParentItemsCheckedStatus(selectedSubItem, batch);
 
         // update sub-items
-        updateSubitemsCheckedStatus(selectedSubItem);
+        updateSubitemsCheckedStatus(selectedSubItem, batch);
     }
 
     /**
      * Uncheck any subitem belong to the checked high-level item will lead the high-level item unchecked.
      * Check all subitems belong ....... unchecked .................. lead ................... checked.
+     * O(1) per level from the checked sub-item counter. Every ancestor is checked, not only up to the first
+     * one which doesn't change: the saved status of a parent may not match its sub-items, e.g. Json defaults.
      * @param item
      */
-    private void updateParentItemsCheckedStatus(SettingsAccessItem item) {
-        SettingsAccessItem parentItem = item.mParentItem;
+    private void updateParentItemsCheckedStatus(SettingsAccessItem item, KeyValueStore.Editor batch) {
+        SettingsAccessItem parentItem = item.getParentItem();
         if (parentItem != null) {
-            if (parentItem.hasSubitems()) {
-                boolean allSubChecked = true;
-                for (SettingsAccessItem subitem : parentItem.mSubItems) {
-                    if (!subitem.isAdminAccessOnly()) {
-                        allSubChecked = false;
-                        break;
-                    }
-                }
-                parentItem.setAdminAccessOnly(allSubChecked);
-            }
+            parentItem.setAdminAccessOnly(parentItem.areAllSubItemsChecked(), batch);
             // recursion
-            updateParentItemsCheckedStatus(parentItem);
+            updateParentItemsCheckedStatus(parentItem, batch);
         } else {
             // exit recursion if has no parent
             return;
@@ -136,18 +382,12 @@ public class SettingsAccessProvider {
 
     /**
      * Check / Uncheck the high level item will make it's sub-items all checked / unchecked.
+     * Done on the tree arrays, no item is created for the sub-items.
      * @param item
      */
-    private void updateSubitemsCheckedStatus(SettingsAccessItem item) {
+    private void updateSubitemsCheckedStatus(SettingsAccessItem item, KeyValueStore.Editor batch) {
         if (item.hasSubitems()) {
-            for (SettingsAccessItem subitem : item.mSubItems) {
-                subitem.setAdminAccessOnly(item.isAdminAccessOnly());
-                // recursion
-                updateSubitemsCheckedStatus(subitem);
-            }
-        } else {
-            // exit recursion if has no subitems
-            return;
+            item.setDescendantsAdminAccessOnly(item.isAdminAccessOnly(), batch);
         }
     }
 }
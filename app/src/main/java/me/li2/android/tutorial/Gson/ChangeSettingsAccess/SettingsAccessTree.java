@@ -0,0 +1,705 @@
+package me.li2.android.tutorial.Gson.ChangeSettingsAccess;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import me.li2.android.tutorial.BasicUtils.StorageUtils.KeyValueStore;
+
+/**
+ * The parsed settings access tree, as flat arrays indexed by node, the root is node 0.
+ * Nodes are bound to the store a level at a time, when their parent is opened (see {@link #getItem(int)}),
+ * the tree itself can be saved as a binary snapshot (see {@link #writeSnapshot(OutputStream, long)}).
+ */
+
+public class SettingsAccessTree {
+    public static final int NO_NODE = -1;
+    public static final char PATH_SEPARATOR = '/';
+    private static final int INITIAL_CAPACITY = 16;
+    // nodes parsed between two ParseListener calls
+    private static final int PROGRESS_INTERVAL = 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PARTIAL_KEY_SUFFIX = "_partial";
+    // set once the partial states of all the nodes are saved, see savePartialStates()
+    static final String PARTIAL_STATES_SAVED_KEY = SettingsAccessItem.PREF_KEY_PREFIX + "partial_states_saved";
+
+    // mBindStates: nothing read yet
+    private static final byte UNBOUND = 0;
+    // checked status and saved partial state read, the child counters aren't
+    private static final byte BOUND = 1;
+    // the children are bound too and the child counters are up to date
+    private static final byte OPENED = 2;
+
+    // "SATS", change SNAPSHOT_FORMAT_VERSION with the snapshot layout
+    private static final int SNAPSHOT_MAGIC = 0x53415453;
+    private static final int SNAPSHOT_FORMAT_VERSION = 1;
+    // magic, format version, data version, node count
+    private static final int SNAPSHOT_HEADER_LENGTH = 20;
+    // 4 ints, 1 boolean and 2 string lengths per node, at least
+    private static final int SNAPSHOT_MIN_NODE_LENGTH = 4 * 4 + 1 + 2 * 4;
+
+    // should be same with Json file
+    private static final String JSON_OBJECT_KEY_SETTINGS_ACCESS = "settings_access";
+    private static final String JSON_OBJECT_KEY_TITLE = "title";
+    private static final String JSON_OBJECT_KEY_PREF_KEY = "pref_key";
+    private static final String JSON_OBJECT_KEY_ADMIN_ONLY = "is_only_admin_access";
+    private static final String JSON_OBJECT_KEY_HAS_SUBITEMS = "has_subitems";
+    private static final String JSON_OBJECT_KEY_ITEMS = "items";
+
+    private final KeyValueStore mStore;
+    private int mSize;
+    private String[] mTitles = new String[INITIAL_CAPACITY];
+    // with SettingsAccessItem.PREF_KEY_PREFIX
+    private String[] mPrefKeys = new String[INITIAL_CAPACITY];
+    private boolean[] mDefaultValues = new boolean[INITIAL_CAPACITY];
+    private int[] mParents = new int[INITIAL_CAPACITY];
+    private int[] mFirstChildren = new int[INITIAL_CAPACITY];
+    private int[] mNextSiblings = new int[INITIAL_CAPACITY];
+    private int[] mChildCounts = new int[INITIAL_CAPACITY];
+    // only needed while building, to append a child in O(1)
+    private int[] mLastChildren = new int[INITIAL_CAPACITY];
+    // full pref key -> node
+    private HashMap<String, Integer> mNodesByPrefKey;
+    // pathKey(parent node, title) -> node, a path is looked up a level at a time
+    private HashMap<String, Integer> mNodesByParentAndTitle;
+    // UNBOUND, BOUND or OPENED. The parent of a bound node is opened.
+    private byte[] mBindStates;
+    // the state of the bound nodes
+    private boolean[] mChecked;
+    // the saved partial state, only used while a node is BOUND
+    private boolean[] mPartial;
+    // number of children in STATE_CHECKED / STATE_PARTIAL of the opened nodes, kept up to date by setChecked()
+    private int[] mCheckedChildCounts;
+    private int[] mPartialChildCounts;
+    // the shared item of each node, null until getItem()
+    private SettingsAccessItem[] mItems;
+
+    private ParseListener mParseListener;
+
+    /**
+     * Told about the progress of {@link #parse(JsonReader, KeyValueStore, ParseListener)}, on the parsing thread.
+     */
+    public interface ParseListener {
+        /**
+         * @param parsedNodes number of nodes parsed so far.
+         * @return false to stop parsing, parse() then throws InterruptedIOException.
+         */
+        boolean onProgress(int parsedNodes);
+    }
+
+    private SettingsAccessTree(KeyValueStore store) {
+        mStore = store;
+    }
+
+    public static SettingsAccessTree parse(JsonReader reader, KeyValueStore store) throws IOException {
+        return parse(reader, store, null);
+    }
+
+    /**
+     * Build the tree straight from the tokens of settings_access_data.json.
+     *
+     * @param listener told every PROGRESS_INTERVAL nodes, can stop the parse. May be null.
+     * @return null if the Json has no "settings_access" object.
+     * @throws IllegalStateException if a token isn't of the expected type.
+     * @throws InterruptedIOException if listener stopped the parse.
+     */
+    public static SettingsAccessTree parse(JsonReader reader, KeyValueStore store, ParseListener listener)
+            throws IOException {
+        SettingsAccessTree tree = new SettingsAccessTree(store);
+        tree.mParseListener = listener;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (JSON_OBJECT_KEY_SETTINGS_ACCESS.equals(reader.nextName()) && tree.mSize == 0) {
+                tree.parseNode(reader, NO_NODE);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        tree.mParseListener = null;
+        if (tree.mSize == 0) {
+            return null;
+        }
+        tree.trimToSize();
+        tree.buildIndexes();
+        tree.initCheckedStates(true);
+        return tree;
+    }
+
+    // The node is added when its object starts, so that the sub-items in "items" can link to it
+    // even if they come before its own fields.
+    private void parseNode(JsonReader reader, int parent) throws IOException {
+        int node = addNode(parent);
+        if (mParseListener != null && mSize % PROGRESS_INTERVAL == 0 && !mParseListener.onProgress(mSize)) {
+            throw new InterruptedIOException("settings access parse cancelled");
+        }
+        String title = null;
+        String prefKey = null;
+        boolean defaultValue = true;
+        boolean hasSubItems = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (JSON_OBJECT_KEY_TITLE.equals(name)) {
+                title = reader.nextString();
+            } else if (JSON_OBJECT_KEY_PREF_KEY.equals(name)) {
+                prefKey = reader.nextString();
+            } else if (JSON_OBJECT_KEY_ADMIN_ONLY.equals(name)) {
+                defaultValue = reader.nextBoolean();
+            } else if (JSON_OBJECT_KEY_HAS_SUBITEMS.equals(name)) {
+                hasSubItems = reader.nextBoolean();
+            } else if (JSON_OBJECT_KEY_ITEMS.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    // recursion
+                    parseNode(reader, node);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        mTitles[node] = title != null ? title : "";
+        mPrefKeys[node] = prefKey != null ? SettingsAccessItem.PREF_KEY_PREFIX + prefKey : "";
+        mDefaultValues[node] = defaultValue;
+        if (!hasSubItems) {
+            // "items" is ignored unless "has_subitems" is true, like the org.json parser did.
+            // Nodes parsed from it stay in the arrays but can't be reached from the root.
+            mFirstChildren[node] = NO_NODE;
+            mChildCounts[node] = 0;
+        }
+    }
+
+    private int addNode(int parent) {
+        if (mSize == mParents.length) {
+            grow();
+        }
+        int node = mSize++;
+        mParents[node] = parent;
+        mFirstChildren[node] = NO_NODE;
+        mNextSiblings[node] = NO_NODE;
+        mLastChildren[node] = NO_NODE;
+        if (parent != NO_NODE) {
+            if (mLastChildren[parent] == NO_NODE) {
+                mFirstChildren[parent] = node;
+            } else {
+                mNextSiblings[mLastChildren[parent]] = node;
+            }
+            mLastChildren[parent] = node;
+            mChildCounts[parent]++;
+        }
+        return node;
+    }
+
+    private void grow() {
+        int capacity = mParents.length * 2;
+        mTitles = Arrays.copyOf(mTitles, capacity);
+        mPrefKeys = Arrays.copyOf(mPrefKeys, capacity);
+        mDefaultValues = Arrays.copyOf(mDefaultValues, capacity);
+        mParents = Arrays.copyOf(mParents, capacity);
+        mFirstChildren = Arrays.copyOf(mFirstChildren, capacity);
+        mNextSiblings = Arrays.copyOf(mNextSiblings, capacity);
+        mChildCounts = Arrays.copyOf(mChildCounts, capacity);
+        mLastChildren = Arrays.copyOf(mLastChildren, capacity);
+    }
+
+    private void trimToSize() {
+        mTitles = Arrays.copyOf(mTitles, mSize);
+        mPrefKeys = Arrays.copyOf(mPrefKeys, mSize);
+        mDefaultValues = Arrays.copyOf(mDefaultValues, mSize);
+        mParents = Arrays.copyOf(mParents, mSize);
+        mFirstChildren = Arrays.copyOf(mFirstChildren, mSize);
+        mNextSiblings = Arrays.copyOf(mNextSiblings, mSize);
+        mChildCounts = Arrays.copyOf(mChildCounts, mSize);
+        mLastChildren = null;
+    }
+
+    /**
+     * Save the arrays in the binary snapshot format, big-endian:
+     * header, then parents, first children, next siblings and child counts as int arrays,
+     * default values as bytes, then titles and pref keys as length-prefixed UTF-8.
+     *
+     * @param dataVersion identifies the Json the tree was parsed from, see {@link #readSnapshot(ByteBuffer, long, KeyValueStore)}.
+     */
+    public void writeSnapshot(OutputStream out, long dataVersion) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeInt(SNAPSHOT_FORMAT_VERSION);
+        data.writeLong(dataVersion);
+        data.writeInt(mSize);
+        writeInts(data, mParents);
+        writeInts(data, mFirstChildren);
+        writeInts(data, mNextSiblings);
+        writeInts(data, mChildCounts);
+        for (int node = 0; node < mSize; node++) {
+            data.writeBoolean(mDefaultValues[node]);
+        }
+        writeStrings(data, mTitles);
+        writeStrings(data, mPrefKeys);
+        data.flush();
+    }
+
+    private void writeInts(DataOutputStream data, int[] values) throws IOException {
+        for (int node = 0; node < mSize; node++) {
+            data.writeInt(values[node]);
+        }
+    }
+
+    private void writeStrings(DataOutputStream data, String[] values) throws IOException {
+        for (int node = 0; node < mSize; node++) {
+            byte[] bytes = values[node].getBytes(UTF_8);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        }
+    }
+
+    /**
+     * Load a tree saved by {@link #writeSnapshot(OutputStream, long)}, e.g. from a mapped file.
+     *
+     * @return null if the snapshot is of another format or data version, is truncated,
+     * or its links don't form a tree, see {@link #hasValidLinks()}.
+     */
+    public static SettingsAccessTree readSnapshot(ByteBuffer snapshot, long dataVersion, KeyValueStore store) {
+        ByteBuffer buffer = snapshot.duplicate().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (buffer.remaining() < SNAPSHOT_HEADER_LENGTH
+                    || buffer.getInt() != SNAPSHOT_MAGIC
+                    || buffer.getInt() != SNAPSHOT_FORMAT_VERSION
+                    || buffer.getLong() != dataVersion) {
+                return null;
+            }
+            int size = buffer.getInt();
+            if (size <= 0 || size > buffer.remaining() / SNAPSHOT_MIN_NODE_LENGTH) {
+                return null;
+            }
+
+            SettingsAccessTree tree = new SettingsAccessTree(store);
+            tree.mSize = size;
+            tree.mParents = readInts(buffer, size);
+            tree.mFirstChildren = readInts(buffer, size);
+            tree.mNextSiblings = readInts(buffer, size);
+            tree.mChildCounts = readInts(buffer, size);
+            if (!tree.hasValidLinks()) {
+                return null;
+            }
+            tree.mDefaultValues = new boolean[size];
+            for (int node = 0; node < size; node++) {
+                tree.mDefaultValues[node] = buffer.get() != 0;
+            }
+            byte[] scratch = new byte[64];
+            tree.mTitles = new String[size];
+            scratch = readStrings(buffer, tree.mTitles, scratch);
+            tree.mPrefKeys = new String[size];
+            readStrings(buffer, tree.mPrefKeys, scratch);
+            tree.mLastChildren = null;
+            tree.buildIndexes();
+            tree.initCheckedStates(false);
+            return tree;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            // truncated or corrupted
+            return null;
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int count) {
+        int[] values = new int[count];
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.get(values);
+        buffer.position(buffer.position() + count * 4);
+        return values;
+    }
+
+    // returns the scratch array, grown if a string didn't fit
+    private static byte[] readStrings(ByteBuffer buffer, String[] values, byte[] scratch) {
+        for (int node = 0; node < values.length; node++) {
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining()) {
+                // corrupted, don't allocate for it
+                throw new BufferUnderflowException();
+            }
+            if (length > scratch.length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.get(scratch, 0, length);
+            values[node] = new String(scratch, 0, length, UTF_8);
+        }
+        return scratch;
+    }
+
+    // The links must form the tree parse() builds: the parent of a node comes before it, its first child
+    // and next sibling after it, and no node is linked to twice. So walking the links from the root
+    // always ends and visits each node once, even if the snapshot is corrupted.
+    private boolean hasValidLinks() {
+        boolean[] linked = new boolean[mSize];
+        for (int node = 0; node < mSize; node++) {
+            int parent = mParents[node];
+            if (node == 0 ? parent != NO_NODE : parent < 0 || parent >= node) {
+                return false;
+            }
+            if (!isValidLink(node, mFirstChildren[node], node, linked)
+                    || !isValidLink(node, mNextSiblings[node], parent, linked)) {
+                return false;
+            }
+        }
+        for (int node = 0; node < mSize; node++) {
+            int childCount = 0;
+            for (int child = mFirstChildren[node]; child != NO_NODE; child = mNextSiblings[child]) {
+                childCount++;
+            }
+            if (childCount != mChildCounts[node]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isValidLink(int from, int to, int expectedParent, boolean[] linked) {
+        if (to == NO_NODE) {
+            return true;
+        }
+        if (to <= from || to >= mSize || linked[to] || mParents[to] != expectedParent) {
+            return false;
+        }
+        linked[to] = true;
+        return true;
+    }
+
+    // Only the nodes reachable from the root are indexed.
+    private void buildIndexes() {
+        // default load factor, sized so that they're never rehashed
+        mNodesByPrefKey = new HashMap<>(mSize * 4 / 3 + 1);
+        mNodesByParentAndTitle = new HashMap<>(mSize * 4 / 3 + 1);
+        indexNode(0);
+    }
+
+    private void indexNode(int node) {
+        if (!mPrefKeys[node].isEmpty()) {
+            mNodesByPrefKey.put(mPrefKeys[node], node);
+        }
+        for (int child = mFirstChildren[node]; child != NO_NODE; child = mNextSiblings[child]) {
+            mNodesByParentAndTitle.put(pathKey(node, mTitles[child]), child);
+            // recursion
+            indexNode(child);
+        }
+    }
+
+    /**
+     * @param prefKey the pref_key of the Json, without {@link SettingsAccessItem#PREF_KEY_PREFIX}.
+     * @return the node, or NO_NODE if there is none.
+     */
+    public int findNodeByPrefKey(String prefKey) {
+        Integer node = mNodesByPrefKey.get(SettingsAccessItem.PREF_KEY_PREFIX + prefKey);
+        return node != null ? node : NO_NODE;
+    }
+
+    /**
+     * @param path titles from a child of the root down to the node, separated by {@link #PATH_SEPARATOR},
+     *             e.g. "Connections/WLAN". An empty path is the root.
+     * @return the node, or NO_NODE if there is none.
+     */
+    public int findNodeByPath(String path) {
+        int node = 0;
+        int start = 0;
+        while (start < path.length()) {
+            int end = path.indexOf(PATH_SEPARATOR, start);
+            if (end < 0) {
+                end = path.length();
+            }
+            Integer child = mNodesByParentAndTitle.get(pathKey(node, path.substring(start, end)));
+            if (child == null) {
+                return NO_NODE;
+            }
+            node = child;
+            start = end + 1;
+        }
+        return node;
+    }
+
+    // PATH_SEPARATOR is a char, so the node must be made a String first, node + PATH_SEPARATOR would add them.
+    // A node id has no separator, so the first one ends it and two different parents never give the same key.
+    private static String pathKey(int parent, String title) {
+        return String.valueOf(parent) + PATH_SEPARATOR + title;
+    }
+
+    public KeyValueStore getStore() {
+        return mStore;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public String getTitle(int node) {
+        return mTitles[node];
+    }
+
+    public String getPrefKey(int node) {
+        return mPrefKeys[node];
+    }
+
+    public boolean getDefaultValue(int node) {
+        return mDefaultValues[node];
+    }
+
+    public int getParent(int node) {
+        return mParents[node];
+    }
+
+    public int getFirstChild(int node) {
+        return mFirstChildren[node];
+    }
+
+    public int getNextSibling(int node) {
+        return mNextSiblings[node];
+    }
+
+    public int getChildCount(int node) {
+        return mChildCounts[node];
+    }
+
+    /**
+     * @return the item of node, created on first call and shared by all the callers.
+     * The node is bound to the store, its ancestors are opened.
+     */
+    public SettingsAccessItem getItem(int node) {
+        bind(node);
+        if (mItems == null) {
+            mItems = new SettingsAccessItem[mSize];
+        }
+        SettingsAccessItem item = mItems[node];
+        if (item == null) {
+            item = new SettingsAccessItem(this, node);
+            mItems[node] = item;
+        }
+        return item;
+    }
+
+    /**
+     * Nothing is read from the store yet, except on a newly parsed Json (or a store without partial states):
+     * the partial states are saved from the values of the whole tree then, see {@link #savePartialStates(int, KeyValueStore.Editor)}.
+     */
+    private void initCheckedStates(boolean parsed) {
+        mBindStates = new byte[mSize];
+        mChecked = new boolean[mSize];
+        mPartial = new boolean[mSize];
+        mCheckedChildCounts = new int[mSize];
+        mPartialChildCounts = new int[mSize];
+        if (parsed || !mStore.contains(PARTIAL_STATES_SAVED_KEY)) {
+            KeyValueStore.Editor batch = mStore.edit();
+            savePartialStates(0, batch);
+            batch.putBoolean(PARTIAL_STATES_SAVED_KEY, true);
+            batch.apply();
+        }
+    }
+
+    // Once per Json: its nodes or defaults may differ from the ones the partial states were saved for.
+    // Returns the state of node from the saved values, or the Json defaults, without binding it.
+    private int savePartialStates(int node, KeyValueStore.Editor batch) {
+        boolean anyChildSet = false;
+        for (int child = mFirstChildren[node]; child != NO_NODE; child = mNextSiblings[child]) {
+            // recursion, every child is visited so that all their states are saved
+            anyChildSet |= savePartialStates(child, batch) != SettingsAccessItem.STATE_UNCHECKED;
+        }
+        int state = readChecked(node) ? SettingsAccessItem.STATE_CHECKED
+                : anyChildSet ? SettingsAccessItem.STATE_PARTIAL : SettingsAccessItem.STATE_UNCHECKED;
+        boolean partial = state == SettingsAccessItem.STATE_PARTIAL;
+        if (mStore.getBoolean(getPartialKey(node), false) != partial) {
+            putPartial(node, partial, batch);
+        }
+        return state;
+    }
+
+    private String getPartialKey(int node) {
+        return mPrefKeys[node] + PARTIAL_KEY_SUFFIX;
+    }
+
+    // only partial nodes keep a key
+    private void putPartial(int node, boolean partial, KeyValueStore.Editor batch) {
+        if (partial) {
+            batch.putBoolean(getPartialKey(node), true);
+        } else {
+            batch.remove(getPartialKey(node));
+        }
+    }
+
+    private boolean readChecked(int node) {
+        return mStore.getBoolean(mPrefKeys[node], mDefaultValues[node]);
+    }
+
+    // Bind node by opening its parent, the root is bound on its own.
+    private void bind(int node) {
+        if (mBindStates[node] != UNBOUND) {
+            return;
+        }
+        int parent = mParents[node];
+        if (parent != NO_NODE) {
+            open(parent);
+            return;
+        }
+        KeyValueStore.Editor defaults = mStore.edit();
+        if (bindNode(node, defaults)) {
+            defaults.apply();
+        }
+    }
+
+    /**
+     * Bind the children of node and count their states, the Json value of a child which was never saved
+     * is saved as its default, in one batch. O(children), their own sub-trees aren't read.
+     */
+    private void open(int node) {
+        if (mBindStates[node] == OPENED) {
+            return;
+        }
+        bind(node);
+        KeyValueStore.Editor defaults = mStore.edit();
+        boolean changed = false;
+        for (int child = mFirstChildren[node]; child != NO_NODE; child = mNextSiblings[child]) {
+            // the children of a node which isn't opened are unbound
+            changed |= bindNode(child, defaults);
+            countChild(node, getCheckedState(child), 1);
+        }
+        mBindStates[node] = OPENED;
+        if (changed) {
+            defaults.apply();
+        }
+    }
+
+    // returns true if the default was added to defaults
+    private boolean bindNode(int node, KeyValueStore.Editor defaults) {
+        String prefKey = mPrefKeys[node];
+        boolean missing = !mStore.contains(prefKey);
+        if (missing) {
+            defaults.putBoolean(prefKey, mDefaultValues[node]);
+        }
+        mChecked[node] = readChecked(node);
+        mPartial[node] = !mChecked[node] && mStore.getBoolean(getPartialKey(node), false);
+        mBindStates[node] = BOUND;
+        return missing;
+    }
+
+    /**
+     * @return the checked status of node, the same as saved in the store. Doesn't bind node.
+     */
+    public boolean isChecked(int node) {
+        return mBindStates[node] != UNBOUND ? mChecked[node] : readChecked(node);
+    }
+
+    /**
+     * @return SettingsAccessItem.STATE_CHECKED if node is checked, STATE_PARTIAL if it isn't but some of its
+     * descendants are, STATE_UNCHECKED otherwise.
+     */
+    public int getCheckedState(int node) {
+        bind(node);
+        if (mChecked[node]) {
+            return SettingsAccessItem.STATE_CHECKED;
+        }
+        boolean partial = mBindStates[node] == OPENED
+                ? mCheckedChildCounts[node] + mPartialChildCounts[node] > 0 : mPartial[node];
+        return partial ? SettingsAccessItem.STATE_PARTIAL : SettingsAccessItem.STATE_UNCHECKED;
+    }
+
+    public boolean areAllChildrenChecked(int node) {
+        open(node);
+        return mCheckedChildCounts[node] == mChildCounts[node];
+    }
+
+    /**
+     * Change the checked status of node and add it to batch, the counters of its ancestors are updated.
+     * @return true if the value changed.
+     */
+    public boolean setChecked(int node, boolean checked, KeyValueStore.Editor batch) {
+        // counted, so that the new state is known
+        open(node);
+        if (mChecked[node] == checked) {
+            return false;
+        }
+        int oldState = getCheckedState(node);
+        mChecked[node] = checked;
+        batch.putBoolean(mPrefKeys[node], checked);
+        onCheckedStateChanged(node, oldState, batch);
+        return true;
+    }
+
+    /**
+     * Set the checked status of every node below node, the changed ones are added to batch.
+     * The whole subtree is opened, it's walked anyway.
+     */
+    public void setDescendantsChecked(int node, boolean checked, KeyValueStore.Editor batch) {
+        open(node);
+        int oldState = getCheckedState(node);
+        setSubtreeChecked(node, checked, batch);
+        onCheckedStateChanged(node, oldState, batch);
+    }
+
+    // The counters of node are set at once, its whole subtree has the same state and none is partial.
+    // Unbound children are compared with the store, without reading them into memory first.
+    private void setSubtreeChecked(int node, boolean checked, KeyValueStore.Editor batch) {
+        for (int child = mFirstChildren[node]; child != NO_NODE; child = mNextSiblings[child]) {
+            String prefKey = mPrefKeys[child];
+            if (mBindStates[child] == UNBOUND) {
+                if (!mStore.contains(prefKey) || readChecked(child) != checked) {
+                    batch.putBoolean(prefKey, checked);
+                }
+                if (mStore.getBoolean(getPartialKey(child), false)) {
+                    putPartial(child, false, batch);
+                }
+            } else {
+                if (getCheckedState(child) == SettingsAccessItem.STATE_PARTIAL) {
+                    putPartial(child, false, batch);
+                }
+                if (mChecked[child] != checked) {
+                    batch.putBoolean(prefKey, checked);
+                }
+            }
+            mChecked[child] = checked;
+            mBindStates[child] = OPENED;
+            // recursion
+            setSubtreeChecked(child, checked, batch);
+        }
+        mCheckedChildCounts[node] = checked ? mChildCounts[node] : 0;
+        mPartialChildCounts[node] = 0;
+    }
+
+    // Save the partial state of node and update the counters of its ancestors, which are opened,
+    // up to the first one whose state doesn't change.
+    private void onCheckedStateChanged(int node, int oldState, KeyValueStore.Editor batch) {
+        int newState = getCheckedState(node);
+        while (newState != oldState) {
+            if (oldState == SettingsAccessItem.STATE_PARTIAL || newState == SettingsAccessItem.STATE_PARTIAL) {
+                putPartial(node, newState == SettingsAccessItem.STATE_PARTIAL, batch);
+            }
+            int parent = mParents[node];
+            if (parent == NO_NODE) {
+                return;
+            }
+            int oldParentState = getCheckedState(parent);
+            countChild(parent, oldState, -1);
+            countChild(parent, newState, 1);
+            node = parent;
+            oldState = oldParentState;
+            newState = getCheckedState(parent);
+        }
+    }
+
+    private void countChild(int node, int childState, int delta) {
+        if (childState == SettingsAccessItem.STATE_CHECKED) {
+            mCheckedChildCounts[node] += delta;
+        } else if (childState == SettingsAccessItem.STATE_PARTIAL) {
+            mPartialChildCounts[node] += delta;
+        }
+    }
+}
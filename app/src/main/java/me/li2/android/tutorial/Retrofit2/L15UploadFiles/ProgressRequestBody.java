@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 
+import me.li2.android.tutorial.BasicUtils.StorageUtils.BufferPool;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import okio.BufferedSink;
@@ -30,8 +31,6 @@ public class ProgressRequestBody extends RequestBody {
     private String mPath;
     private UploadCallbacks mListener;
 
-    private static final int DEFAULT_BUFFER_SIZE = 2048;
-
     public interface UploadCallbacks {
         void onProgressUpdate(int percentage, long uploaded, long total);
         void onError();
@@ -57,8 +56,8 @@ public class ProgressRequestBody extends RequestBody {
     @Override
     public void writeTo(BufferedSink sink) throws IOException {
         long fileLength = mFile.length();
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
         FileInputStream in = new FileInputStream(mFile);
+        byte[] buffer = BufferPool.get().acquire(fileLength);
         long uploaded = 0;
 
         try {
@@ -70,6 +69,7 @@ public class ProgressRequestBody extends RequestBody {
             }
         } finally {
             in.close();
+            BufferPool.get().release(buffer);
         }
     }
 
@@ -0,0 +1,194 @@
+package me.li2.android.tutorial.Retrofit2.L3CreatingSustainableClient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Protocol;
+
+/**
+ * Concurrency and timeouts of the OkHttpClient built by {@link ServiceGenerator}.
+ * A bulk sync to one host should raise maxRequestsPerHost (5 by default) and maxIdleConnections together.
+ */
+
+public class HttpClientConfig {
+    public static final HttpClientConfig DEFAULT = new Builder().build();
+
+    private final int mMaxIdleConnections;
+    private final long mKeepAliveMillis;
+    private final int mMaxRequests;
+    private final int mMaxRequestsPerHost;
+    private final List<Protocol> mProtocols;
+    private final long mConnectTimeoutMillis;
+    private final long mReadTimeoutMillis;
+    private final long mWriteTimeoutMillis;
+
+    private HttpClientConfig(Builder builder) {
+        mMaxIdleConnections = builder.mMaxIdleConnections;
+        mKeepAliveMillis = builder.mKeepAliveMillis;
+        mMaxRequests = builder.mMaxRequests;
+        mMaxRequestsPerHost = builder.mMaxRequestsPerHost;
+        mProtocols = Collections.unmodifiableList(new ArrayList<>(builder.mProtocols));
+        mConnectTimeoutMillis = builder.mConnectTimeoutMillis;
+        mReadTimeoutMillis = builder.mReadTimeoutMillis;
+        mWriteTimeoutMillis = builder.mWriteTimeoutMillis;
+    }
+
+    public int getMaxIdleConnections() {
+        return mMaxIdleConnections;
+    }
+
+    public long getKeepAliveMillis() {
+        return mKeepAliveMillis;
+    }
+
+    public int getMaxRequests() {
+        return mMaxRequests;
+    }
+
+    public int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    public List<Protocol> getProtocols() {
+        return mProtocols;
+    }
+
+    public long getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    public long getReadTimeoutMillis() {
+        return mReadTimeoutMillis;
+    }
+
+    public long getWriteTimeoutMillis() {
+        return mWriteTimeoutMillis;
+    }
+
+    /**
+     * @return a builder with the values of this config, to change some of them.
+     */
+    public Builder newBuilder() {
+        return new Builder(this);
+    }
+
+    public static class Builder {
+        private int mMaxIdleConnections = 5;
+        private long mKeepAliveMillis = TimeUnit.MINUTES.toMillis(5);
+        private int mMaxRequests = 64;
+        private int mMaxRequestsPerHost = 5;
+        private List<Protocol> mProtocols = Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1);
+        private long mConnectTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+        private long mReadTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+        private long mWriteTimeoutMillis = TimeUnit.SECONDS.toMillis(10);
+
+        public Builder() {
+        }
+
+        private Builder(HttpClientConfig config) {
+            mMaxIdleConnections = config.mMaxIdleConnections;
+            mKeepAliveMillis = config.mKeepAliveMillis;
+            mMaxRequests = config.mMaxRequests;
+            mMaxRequestsPerHost = config.mMaxRequestsPerHost;
+            mProtocols = config.mProtocols;
+            mConnectTimeoutMillis = config.mConnectTimeoutMillis;
+            mReadTimeoutMillis = config.mReadTimeoutMillis;
+            mWriteTimeoutMillis = config.mWriteTimeoutMillis;
+        }
+
+        /**
+         * Idle connections kept in the ConnectionPool, for reuse by the next requests.
+         */
+        public Builder maxIdleConnections(int maxIdleConnections) {
+            if (maxIdleConnections < 0) {
+                throw new IllegalArgumentException("maxIdleConnections < 0: " + maxIdleConnections);
+            }
+            mMaxIdleConnections = maxIdleConnections;
+            return this;
+        }
+
+        /**
+         * How long an idle connection is kept in the ConnectionPool.
+         */
+        public Builder keepAlive(long duration, TimeUnit unit) {
+            if (duration <= 0) {
+                throw new IllegalArgumentException("keepAlive <= 0: " + duration);
+            }
+            mKeepAliveMillis = unit.toMillis(duration);
+            return this;
+        }
+
+        /**
+         * Requests the Dispatcher runs at a time, the next ones are queued.
+         */
+        public Builder maxRequests(int maxRequests) {
+            if (maxRequests < 1) {
+                throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+            }
+            mMaxRequests = maxRequests;
+            return this;
+        }
+
+        /**
+         * Requests the Dispatcher runs at a time to the same host, at most maxRequests.
+         */
+        public Builder maxRequestsPerHost(int maxRequestsPerHost) {
+            if (maxRequestsPerHost < 1) {
+                throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+            }
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Protocols offered to the server, in order of preference. Must contain HTTP/1.1, e.g. HTTP/1.1 alone
+         * to turn HTTP/2 off.
+         */
+        public Builder protocols(List<Protocol> protocols) {
+            if (!protocols.contains(Protocol.HTTP_1_1)) {
+                throw new IllegalArgumentException("protocols doesn't contain http/1.1: " + protocols);
+            }
+            if (protocols.contains(Protocol.HTTP_1_0)) {
+                throw new IllegalArgumentException("protocols must not contain http/1.0: " + protocols);
+            }
+            mProtocols = new ArrayList<>(protocols);
+            return this;
+        }
+
+        /**
+         * @param timeout 0 for no timeout, like OkHttp.
+         */
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            mConnectTimeoutMillis = checkTimeout("connectTimeout", timeout, unit);
+            return this;
+        }
+
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            mReadTimeoutMillis = checkTimeout("readTimeout", timeout, unit);
+            return this;
+        }
+
+        public Builder writeTimeout(long timeout, TimeUnit unit) {
+            mWriteTimeoutMillis = checkTimeout("writeTimeout", timeout, unit);
+            return this;
+        }
+
+        private static long checkTimeout(String name, long timeout, TimeUnit unit) {
+            if (timeout < 0) {
+                throw new IllegalArgumentException(name + " < 0: " + timeout);
+            }
+            return unit.toMillis(timeout);
+        }
+
+        public HttpClientConfig build() {
+            if (mMaxRequestsPerHost > mMaxRequests) {
+                throw new IllegalArgumentException("maxRequestsPerHost " + mMaxRequestsPerHost
+                        + " > maxRequests " + mMaxRequests);
+            }
+            return new HttpClientConfig(this);
+        }
+    }
+}
@@ -4,7 +4,10 @@ import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -30,6 +33,10 @@ import retrofit2.converter.simplexml.SimpleXmlConverterFactory;
 public class ServiceGenerator {
     private static final String BASE_URL = "https://api.github.com/";
 
+    // before httpClient, which is built from it
+    private static HttpClientConfig httpClientConfig = HttpClientConfig.DEFAULT;
+    private static OkHttpClient httpClient = getOkHttpClientBuilder().build();
+
     /*
     MalformedJsonException: Use JsonReader.setLenient(true) to accept malformed JSON at line 1 column 1 path $
     http://stackoverflow.com/a/36002007/2722270
@@ -57,7 +64,7 @@ public class ServiceGenerator {
                     .baseUrl(BASE_URL)
                     .addConverterFactory(SimpleXmlConverterFactory.create())
                     .addConverterFactory(GsonConverterFactory.create(gson))
-                    .client(getOkHttpClientBuilder().build())
+                    .client(httpClient)
             ;
 
     private static Retrofit retrofit = builder.build();
@@ -94,14 +101,43 @@ public class ServiceGenerator {
         HttpLoggingInterceptor loggingInterceptor = new HttpLoggingInterceptor();
         loggingInterceptor.setLevel(HttpLoggingInterceptor.Level.BODY);
 
-        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(httpClientConfig.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(httpClientConfig.getMaxRequestsPerHost());
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(httpClientConfig.getMaxIdleConnections(),
+                        httpClientConfig.getKeepAliveMillis(), TimeUnit.MILLISECONDS))
+                .protocols(httpClientConfig.getProtocols())
+                .connectTimeout(httpClientConfig.getConnectTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .readTimeout(httpClientConfig.getReadTimeoutMillis(), TimeUnit.MILLISECONDS)
+                .writeTimeout(httpClientConfig.getWriteTimeoutMillis(), TimeUnit.MILLISECONDS);
         builder.addInterceptor(loggingInterceptor);
         // TODO not work !
         builder.addInterceptor(createRequestInterceptor());
         return builder;
     }
 
-    public static <S> S createService(Class<S> serviceClass) {
+    /**
+     * Tune the connection pool, dispatcher, protocols and timeouts, e.g. for a bulk sync.
+     * Services created from now on use a new client built with config, services created
+     * before keep the old client, its idle connections are closed.
+     */
+    public static synchronized void setHttpClientConfig(HttpClientConfig config) {
+        OkHttpClient oldHttpClient = httpClient;
+        httpClientConfig = config;
+        httpClient = getOkHttpClientBuilder().build();
+        builder.client(httpClient);
+        retrofit = builder.build();
+        oldHttpClient.connectionPool().evictAll();
+    }
+
+    public static synchronized HttpClientConfig getHttpClientConfig() {
+        return httpClientConfig;
+    }
+
+    public static synchronized <S> S createService(Class<S> serviceClass) {
         return retrofit.create(serviceClass);
     }
 }
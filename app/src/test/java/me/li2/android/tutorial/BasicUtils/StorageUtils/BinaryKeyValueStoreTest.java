@@ -0,0 +1,165 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * BinaryKeyValueStore replay, torn batches and compaction, on the JVM.
+ */
+public class BinaryKeyValueStoreTest {
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private BinaryKeyValueStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mTemporaryFolder.getRoot();
+        mStore = new BinaryKeyValueStore(mDirectory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStore.close();
+    }
+
+    @Test
+    public void reopen_replaysAppliedAndCommittedChanges() throws Exception {
+        mStore.edit().putBoolean("a", true).putBoolean("b", false).apply();
+        mStore.edit().putBoolean("b", true).remove("a").putBoolean("c", false).commit();
+        reopen();
+
+        assertFalse(mStore.contains("a"));
+        assertTrue(mStore.getBoolean("b", false));
+        assertFalse(mStore.getBoolean("c", true));
+        assertEquals(2, mStore.size());
+    }
+
+    @Test
+    public void reopen_afterTruncatedTail_dropsTornBatchAsAWhole() throws Exception {
+        mStore.edit().putBoolean("kept", true).commit();
+        mStore.edit().putBoolean("torn1", true).putBoolean("torn2", true).putBoolean("kept", false).commit();
+        mStore.close();
+
+        File segment = onlySegment();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(segment.length() - 1);
+        } finally {
+            file.close();
+        }
+        mStore = new BinaryKeyValueStore(mDirectory);
+
+        assertTrue(mStore.getBoolean("kept", false));
+        assertFalse(mStore.contains("torn1"));
+        assertFalse(mStore.contains("torn2"));
+
+        // and the log goes on after the last valid batch
+        mStore.edit().putBoolean("after", true).commit();
+        reopen();
+        assertTrue(mStore.getBoolean("after", false));
+        assertTrue(mStore.getBoolean("kept", false));
+    }
+
+    @Test
+    public void compaction_shrinksLogAndKeepsValuesAcrossReopen() throws Exception {
+        int keys = 50;
+        int rounds = 2000;
+        for (int round = 0; round < rounds; round++) {
+            KeyValueStore.Editor editor = mStore.edit();
+            for (int key = round % 5; key < keys; key += 5) {
+                editor.putBoolean("key" + key, round % 2 == 0);
+            }
+            editor.remove("removed" + (round - 1)).putBoolean("removed" + round, true);
+            if (round % 100 == 0) {
+                editor.commit();
+            } else {
+                editor.apply();
+            }
+        }
+        // waits for the applied changes
+        mStore.close();
+
+        // far more than 64 KB were appended, the log holds about one snapshot now
+        File segment = onlySegment();
+        assertTrue("log of " + segment.length() + " bytes", segment.length() < 64 * 1024);
+
+        mStore = new BinaryKeyValueStore(mDirectory);
+        assertEquals(keys + 1, mStore.size());
+        for (int key = 0; key < keys; key++) {
+            // the last round which wrote key
+            int lastRound = rounds - 5 + key % 5;
+            assertEquals("key" + key, lastRound % 2 == 0, mStore.getBoolean("key" + key, lastRound % 2 != 0));
+        }
+        assertFalse(mStore.contains("removed" + (rounds - 2)));
+        assertTrue(mStore.getBoolean("removed" + (rounds - 1), false));
+    }
+
+    @Test
+    public void reopen_afterCrashBeforeOldSegmentsDeleted_snapshotWins() throws Exception {
+        mStore.edit().putBoolean("removed", true).putBoolean("kept", true).commit();
+        mStore.close();
+        File oldSegment = onlySegment();
+        File oldCopy = new File(mDirectory, oldSegment.getName() + ".old");
+        copy(oldSegment, oldCopy);
+
+        mStore = new BinaryKeyValueStore(mDirectory);
+        mStore.edit().remove("removed").commit();
+        writeUntilCompacted();
+        mStore.close();
+        assertFalse(oldSegment.exists());
+
+        // a crash between the snapshot append and deleteClosedSegments(), with old segments which
+        // still set the key and miss its removal, like one skipped because the snapshot covered it
+        assertTrue(oldCopy.renameTo(oldSegment));
+        mStore = new BinaryKeyValueStore(mDirectory);
+
+        assertFalse(mStore.contains("removed"));
+        assertTrue(mStore.getBoolean("kept", false));
+    }
+
+    // writes more than 64 KB over two keys, so the log is compacted
+    private void writeUntilCompacted() {
+        for (int round = 0; round < 10000; round++) {
+            mStore.edit().putBoolean("churn" + round % 2, round % 4 < 2).apply();
+        }
+    }
+
+    private static void copy(File source, File target) throws Exception {
+        InputStream in = new FileInputStream(source);
+        try {
+            OutputStream out = new FileOutputStream(target);
+            try {
+                StorageStreams.copy(in, out, source.length());
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void reopen() throws Exception {
+        mStore.close();
+        mStore = new BinaryKeyValueStore(mDirectory);
+    }
+
+    private File onlySegment() {
+        File[] files = mDirectory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+}
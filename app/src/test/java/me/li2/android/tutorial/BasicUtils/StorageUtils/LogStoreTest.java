@@ -0,0 +1,203 @@
+package me.li2.android.tutorial.BasicUtils.StorageUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * LogStore replay and recovery, on the JVM.
+ */
+public class LogStoreTest {
+    // length + crc
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private LogStore mLog;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = mTemporaryFolder.getRoot();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mLog != null) {
+            mLog.close();
+        }
+    }
+
+    @Test
+    public void replay_returnsRecordsInOrder() throws Exception {
+        mLog = new LogStore(mDirectory);
+        mLog.append("one");
+        mLog.append("two");
+        mLog.append("three");
+        reopen(LogStore.DEFAULT_SEGMENT_SIZE);
+
+        assertEquals(Arrays.asList("one", "two", "three"), readAll());
+    }
+
+    @Test
+    public void replay_acrossSegments() throws Exception {
+        // every record starts a new segment
+        mLog = new LogStore(mDirectory, 1);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            mLog.append("record " + i);
+            expected.add("record " + i);
+        }
+        reopen(1);
+
+        assertTrue(mLog.getSegmentCount() > 1);
+        assertEquals(expected, readAll());
+    }
+
+    @Test
+    public void replay_afterTruncatedTail_dropsTornRecord() throws Exception {
+        mLog = new LogStore(mDirectory);
+        mLog.append("one");
+        mLog.append("two");
+        mLog.close();
+        mLog = null;
+
+        // a crash in the middle of the last record, its header is there but only part of its bytes
+        File segment = onlySegment();
+        truncate(segment, segment.length() - 1);
+
+        mLog = new LogStore(mDirectory);
+        assertEquals(Arrays.asList("one"), readAll());
+        // the torn bytes are cut off, so a new record follows the last valid one
+        assertEquals(RECORD_HEADER_LENGTH + "one".length(), segment.length());
+        mLog.append("three");
+        reopen(LogStore.DEFAULT_SEGMENT_SIZE);
+        assertEquals(Arrays.asList("one", "three"), readAll());
+    }
+
+    @Test
+    public void replay_afterTruncatedHeader_dropsTornRecord() throws Exception {
+        mLog = new LogStore(mDirectory);
+        mLog.append("one");
+        mLog.append("two");
+        mLog.close();
+        mLog = null;
+
+        File segment = onlySegment();
+        truncate(segment, RECORD_HEADER_LENGTH + "one".length() + RECORD_HEADER_LENGTH / 2);
+
+        mLog = new LogStore(mDirectory);
+        assertEquals(Arrays.asList("one"), readAll());
+        mLog.append("three");
+        reopen(LogStore.DEFAULT_SEGMENT_SIZE);
+        assertEquals(Arrays.asList("one", "three"), readAll());
+    }
+
+    @Test
+    public void replay_afterCorruptedTail_dropsRecord() throws Exception {
+        mLog = new LogStore(mDirectory);
+        mLog.append("one");
+        mLog.append("two");
+        mLog.close();
+        mLog = null;
+
+        // flip a byte of the last record, its CRC doesn't match anymore
+        File segment = onlySegment();
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(segment.length() - 1);
+            int last = file.read();
+            file.seek(segment.length() - 1);
+            file.write(last ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        mLog = new LogStore(mDirectory);
+        assertEquals(Arrays.asList("one"), readAll());
+    }
+
+    @Test
+    public void deleteClosedSegments_keepsActiveSegment() throws Exception {
+        mLog = new LogStore(mDirectory);
+        mLog.append("old");
+        mLog.rollSegment();
+        mLog.append("new");
+        mLog.deleteClosedSegments();
+        reopen(LogStore.DEFAULT_SEGMENT_SIZE);
+
+        assertEquals(1, mLog.getSegmentCount());
+        assertEquals(Arrays.asList("new"), readAll());
+    }
+
+    @Test
+    public void roll_compactsSegmentsOfPreviousRun() throws Exception {
+        mLog = new LogStore(mDirectory);
+        mLog.append("drop");
+        mLog.append("keep");
+        mLog.rollSegment();
+        reopen(LogStore.DEFAULT_SEGMENT_SIZE);
+
+        mLog.setCompactionFilter(new LogStore.RecordFilter() {
+            @Override
+            public boolean keep(byte[] record) {
+                return !Arrays.equals("drop".getBytes(), record);
+            }
+        });
+        mLog.append("new");
+        mLog.rollSegment();
+        // queued after the compaction started by the roll, so it waits for it
+        mLog.compact(new LogStore.RecordFilter() {
+            @Override
+            public boolean keep(byte[] record) {
+                return true;
+            }
+        }).get();
+
+        assertEquals(Arrays.asList("keep", "new"), readAll());
+    }
+
+    private void reopen(long segmentSize) throws Exception {
+        mLog.close();
+        mLog = new LogStore(mDirectory, segmentSize);
+    }
+
+    private List<String> readAll() throws Exception {
+        List<String> records = new ArrayList<>();
+        LogStore.RecordIterator iterator = mLog.iterator();
+        try {
+            while (iterator.hasNext()) {
+                records.add(iterator.nextString());
+            }
+        } finally {
+            iterator.close();
+        }
+        return records;
+    }
+
+    private File onlySegment() {
+        File[] files = mDirectory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private static void truncate(File file, long length) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
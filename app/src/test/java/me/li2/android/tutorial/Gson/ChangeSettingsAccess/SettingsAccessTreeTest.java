@@ -0,0 +1,327 @@
+package me.li2.android.tutorial.Gson.ChangeSettingsAccess;
+
+import com.google.gson.stream.JsonReader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import me.li2.android.tutorial.BasicUtils.StorageUtils.BinaryKeyValueStore;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.KeyValueStore;
+
+import static org.junit.Assert.*;
+
+/**
+ * SettingsAccessTree parsing, binary snapshots and checked state updates, on the JVM.
+ */
+public class SettingsAccessTreeTest {
+    private static final long DATA_VERSION = 42;
+    // root
+    // +- A
+    // |  +- A1 unchecked
+    // |  +- A2 checked
+    // +- B     checked
+    private static final String JSON = ("{'settings_access': {'title': 'root', 'pref_key': 'root', 'is_only_admin_access': false, 'has_subitems': true, 'items': ["
+            + "{'title': 'A', 'pref_key': 'a', 'is_only_admin_access': false, 'has_subitems': true, 'items': ["
+            + "{'title': 'A1', 'pref_key': 'a1', 'is_only_admin_access': false, 'has_subitems': false},"
+            + "{'title': 'A2', 'pref_key': 'a2', 'has_subitems': false}]},"
+            + "{'title': 'B', 'pref_key': 'b', 'has_subitems': false}]}}").replace('\'', '"');
+    // magic, format version, data version, node count
+    private static final int HEADER_LENGTH = 20;
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private BinaryKeyValueStore mStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = new BinaryKeyValueStore(mTemporaryFolder.getRoot());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mStore.close();
+    }
+
+    @Test
+    public void snapshot_roundTrip() throws Exception {
+        SettingsAccessTree tree = parse(JSON);
+        SettingsAccessTree loaded = SettingsAccessTree.readSnapshot(ByteBuffer.wrap(writeSnapshot(tree)), DATA_VERSION, mStore);
+
+        assertNotNull(loaded);
+        assertEquals(tree.size(), loaded.size());
+        for (int node = 0; node < tree.size(); node++) {
+            assertEquals(tree.getTitle(node), loaded.getTitle(node));
+            assertEquals(tree.getPrefKey(node), loaded.getPrefKey(node));
+            assertEquals(tree.getDefaultValue(node), loaded.getDefaultValue(node));
+            assertEquals(tree.getParent(node), loaded.getParent(node));
+            assertEquals(tree.getFirstChild(node), loaded.getFirstChild(node));
+            assertEquals(tree.getNextSibling(node), loaded.getNextSibling(node));
+            assertEquals(tree.getChildCount(node), loaded.getChildCount(node));
+        }
+        assertEquals(tree.findNodeByPath("A/A2"), loaded.findNodeByPath("A/A2"));
+        assertEquals(SettingsAccessItem.STATE_PARTIAL, loaded.getCheckedState(0));
+    }
+
+    @Test
+    public void readSnapshot_bindsOneLevelAtATime() throws Exception {
+        byte[] snapshot = writeSnapshot(parse(JSON));
+        SettingsAccessTree loaded = SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore);
+        int a = loaded.findNodeByPath("A");
+        int a2 = loaded.findNodeByPath("A/A2");
+
+        assertEquals(SettingsAccessItem.STATE_PARTIAL, loaded.getCheckedState(0));
+        assertTrue(mStore.contains(loaded.getPrefKey(0)));
+        assertFalse(mStore.contains(loaded.getPrefKey(a)));
+        // opens the root only, A is partial from its saved state
+        assertEquals(SettingsAccessItem.STATE_PARTIAL, loaded.getItem(a).getCheckedState());
+        assertTrue(mStore.contains(loaded.getPrefKey(a)));
+        assertTrue(mStore.contains(loaded.getPrefKey(loaded.findNodeByPath("B"))));
+        assertFalse(mStore.contains(loaded.getPrefKey(loaded.findNodeByPath("A/A1"))));
+
+        KeyValueStore.Editor batch = mStore.edit();
+        loaded.setChecked(a2, false, batch);
+        batch.apply();
+        loaded = SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore);
+        assertEquals(SettingsAccessItem.STATE_UNCHECKED, loaded.getItem(a).getCheckedState());
+        assertEquals(SettingsAccessItem.STATE_CHECKED, loaded.getCheckedState(loaded.findNodeByPath("B")));
+        assertEquals(SettingsAccessItem.STATE_PARTIAL, loaded.getCheckedState(0));
+    }
+
+    @Test
+    public void readSnapshot_wrongDataVersion_returnsNull() throws Exception {
+        byte[] snapshot = writeSnapshot(parse(JSON));
+        assertNull(SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION + 1, mStore));
+    }
+
+    @Test
+    public void readSnapshot_wrongFormatVersion_returnsNull() throws Exception {
+        byte[] snapshot = writeSnapshot(parse(JSON));
+        ByteBuffer.wrap(snapshot).putInt(4, 0);
+        assertNull(SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore));
+    }
+
+    @Test
+    public void readSnapshot_truncated_returnsNull() throws Exception {
+        byte[] snapshot = writeSnapshot(parse(JSON));
+        for (int length = 0; length < snapshot.length; length++) {
+            assertNull("truncated to " + length,
+                    SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot, 0, length), DATA_VERSION, mStore));
+        }
+    }
+
+    @Test
+    public void readSnapshot_cyclicLinks_returnsNull() throws Exception {
+        SettingsAccessTree tree = parse(JSON);
+        int size = tree.size();
+        int firstChildren = HEADER_LENGTH + 4 * size;
+        int nextSiblings = HEADER_LENGTH + 8 * size;
+        int a = tree.findNodeByPath("A");
+        int a1 = tree.findNodeByPath("A/A1");
+
+        // A1 is its own first child
+        byte[] snapshot = writeSnapshot(tree);
+        ByteBuffer.wrap(snapshot).putInt(firstChildren + 4 * a1, a1);
+        assertNull(SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore));
+
+        // A1's next sibling is A, its parent
+        snapshot = writeSnapshot(tree);
+        ByteBuffer.wrap(snapshot).putInt(nextSiblings + 4 * a1, a);
+        assertNull(SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore));
+
+        // B is reached both as the next sibling of A and as the first child of A2
+        snapshot = writeSnapshot(tree);
+        ByteBuffer.wrap(snapshot).putInt(firstChildren + 4 * tree.findNodeByPath("A/A2"), tree.findNodeByPath("B"));
+        assertNull(SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore));
+
+        // out of range
+        snapshot = writeSnapshot(tree);
+        ByteBuffer.wrap(snapshot).putInt(firstChildren + 4 * a, size);
+        assertNull(SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore));
+    }
+
+    @Test
+    public void readSnapshot_hugeStringLength_returnsNull() throws Exception {
+        SettingsAccessTree tree = parse(JSON);
+        int size = tree.size();
+        // after the 4 int arrays and the default values
+        int firstTitleLength = HEADER_LENGTH + 16 * size + size;
+        byte[] snapshot = writeSnapshot(tree);
+        ByteBuffer.wrap(snapshot).putInt(firstTitleLength, Integer.MAX_VALUE);
+        assertNull(SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore));
+
+        ByteBuffer.wrap(snapshot).putInt(firstTitleLength, -1);
+        assertNull(SettingsAccessTree.readSnapshot(ByteBuffer.wrap(snapshot), DATA_VERSION, mStore));
+    }
+
+    @Test
+    public void readSnapshot_corruptedBytes_neverThrows() throws Exception {
+        byte[] snapshot = writeSnapshot(parse(JSON));
+        for (int i = 0; i < snapshot.length; i++) {
+            byte[] corrupted = snapshot.clone();
+            corrupted[i] ^= 0xff;
+            // null, or a tree whose links are still valid, e.g. if only a title changed
+            SettingsAccessTree.readSnapshot(ByteBuffer.wrap(corrupted), DATA_VERSION, mStore);
+        }
+    }
+
+    @Test
+    public void findNodeByPath_titlesOfSiblingsAndCousins() throws Exception {
+        // root
+        // +- 1X            node 1
+        // +- F             node 2
+        // |  +- 421 leaves node 3 to 423, titled 0 to 420
+        // +- P             node 424
+        //    +- X          node 425
+        //    +- XX         node 426
+        //    +- 0          node 427, the same title as a child of F
+        // "471X" was the key of both 1X and P/X when the node and the separator were added as numbers.
+        StringBuilder json = new StringBuilder("{'settings_access': {'title': 'root', 'has_subitems': true, 'items': [");
+        json.append("{'title': '1X', 'has_subitems': false},");
+        json.append("{'title': 'F', 'has_subitems': true, 'items': [");
+        for (int i = 0; i < 421; i++) {
+            json.append(i > 0 ? "," : "").append("{'title': '").append(i).append("', 'has_subitems': false}");
+        }
+        json.append("]},");
+        json.append("{'title': 'P', 'has_subitems': true, 'items': [");
+        json.append("{'title': 'X', 'has_subitems': false},");
+        json.append("{'title': 'XX', 'has_subitems': false},");
+        json.append("{'title': '0', 'has_subitems': false}]}]}}");
+        SettingsAccessTree tree = parse(json.toString().replace('\'', '"'));
+
+        assertEquals(0, tree.findNodeByPath(""));
+        assertEquals(1, tree.findNodeByPath("1X"));
+        assertEquals(2, tree.findNodeByPath("F"));
+        assertEquals(3, tree.findNodeByPath("F/0"));
+        assertEquals(423, tree.findNodeByPath("F/420"));
+        assertEquals(424, tree.findNodeByPath("P"));
+        assertEquals(425, tree.findNodeByPath("P/X"));
+        assertEquals(426, tree.findNodeByPath("P/XX"));
+        assertEquals(427, tree.findNodeByPath("P/0"));
+        assertEquals(SettingsAccessTree.NO_NODE, tree.findNodeByPath("X"));
+        assertEquals(SettingsAccessTree.NO_NODE, tree.findNodeByPath("P/1X"));
+        assertEquals(SettingsAccessTree.NO_NODE, tree.findNodeByPath("F/421"));
+    }
+
+    @Test
+    public void updateItem_matchesFullRecount() throws Exception {
+        Random random = new Random(16);
+        for (int round = 0; round < 200; round++) {
+            SettingsAccessTree tree = parse(randomTreeJson(random, "round" + round + "_"));
+            // the saved status, updated by rescanning the sub-items like the provider did before the counters
+            boolean[] expected = new boolean[tree.size()];
+            for (int node = 0; node < tree.size(); node++) {
+                expected[node] = tree.getDefaultValue(node);
+            }
+            for (int toggle = 0; toggle < 200; toggle++) {
+                int node = random.nextInt(tree.size());
+                boolean checked = random.nextBoolean();
+                KeyValueStore.Editor batch = mStore.edit();
+                updateItem(tree.getItem(node), checked, batch);
+                batch.apply();
+                updateByRescan(tree, expected, node, checked);
+                assertMatchesRecount(tree, expected, "round " + round + " toggle " + toggle + " node " + node);
+            }
+        }
+    }
+
+    // the calls of SettingsAccessProvider.updateItem(SettingsAccessItem, boolean, KeyValueStore.Editor)
+    private static void updateItem(SettingsAccessItem item, boolean checked, KeyValueStore.Editor batch) {
+        item.setAdminAccessOnly(checked, batch);
+        for (SettingsAccessItem parentItem = item.getParentItem(); parentItem != null; parentItem = parentItem.getParentItem()) {
+            parentItem.setAdminAccessOnly(parentItem.areAllSubItemsChecked(), batch);
+        }
+        if (item.hasSubitems()) {
+            item.setDescendantsAdminAccessOnly(item.isAdminAccessOnly(), batch);
+        }
+    }
+
+    private static void updateByRescan(SettingsAccessTree tree, boolean[] checked, int node, boolean value) {
+        checked[node] = value;
+        for (int parent = tree.getParent(node); parent != SettingsAccessTree.NO_NODE; parent = tree.getParent(parent)) {
+            boolean allChecked = true;
+            for (int child = tree.getFirstChild(parent); child != SettingsAccessTree.NO_NODE; child = tree.getNextSibling(child)) {
+                allChecked &= checked[child];
+            }
+            checked[parent] = allChecked;
+        }
+        setSubtree(tree, checked, node, value);
+    }
+
+    private static void setSubtree(SettingsAccessTree tree, boolean[] checked, int node, boolean value) {
+        for (int child = tree.getFirstChild(node); child != SettingsAccessTree.NO_NODE; child = tree.getNextSibling(child)) {
+            checked[child] = value;
+            setSubtree(tree, checked, child, value);
+        }
+    }
+
+    // The tri-state of every node counted again from the sub-trees, a parent comes before its children.
+    private void assertMatchesRecount(SettingsAccessTree tree, boolean[] checked, String message) {
+        int[] states = new int[tree.size()];
+        for (int node = tree.size() - 1; node >= 0; node--) {
+            boolean allChildrenChecked = true;
+            boolean anyChildSet = false;
+            for (int child = tree.getFirstChild(node); child != SettingsAccessTree.NO_NODE; child = tree.getNextSibling(child)) {
+                allChildrenChecked &= checked[child];
+                anyChildSet |= states[child] != SettingsAccessItem.STATE_UNCHECKED;
+            }
+            states[node] = checked[node] ? SettingsAccessItem.STATE_CHECKED
+                    : anyChildSet ? SettingsAccessItem.STATE_PARTIAL : SettingsAccessItem.STATE_UNCHECKED;
+
+            assertEquals(message + ": checked " + node, checked[node], tree.isChecked(node));
+            // levels which were never opened have nothing saved yet
+            if (mStore.contains(tree.getPrefKey(node))) {
+                assertEquals(message + ": saved " + node, checked[node], mStore.getBoolean(tree.getPrefKey(node), false));
+            }
+            assertEquals(message + ": state " + node, states[node], tree.getCheckedState(node));
+            assertEquals(message + ": all children checked " + node, allChildrenChecked, tree.areAllChildrenChecked(node));
+        }
+    }
+
+    // Up to 4 levels below the root, with random Json defaults, so a parent often doesn't match its children.
+    private static String randomTreeJson(Random random, String prefKeyPrefix) {
+        StringBuilder json = new StringBuilder("{'settings_access': ");
+        appendRandomNode(json, random, prefKeyPrefix, new int[1], 0);
+        return json.append('}').toString().replace('\'', '"');
+    }
+
+    // nodes are numbered in the order they're parsed, like the tree does
+    private static void appendRandomNode(StringBuilder json, Random random, String prefKeyPrefix, int[] nodeCount, int depth) {
+        int node = nodeCount[0]++;
+        int children = depth < 4 ? random.nextInt(5) : 0;
+        json.append("{'title': '").append(node)
+                .append("', 'pref_key': '").append(prefKeyPrefix).append(node)
+                .append("', 'is_only_admin_access': ").append(random.nextBoolean())
+                .append(", 'has_subitems': ").append(children > 0);
+        if (children > 0) {
+            json.append(", 'items': [");
+            for (int i = 0; i < children; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                // recursion
+                appendRandomNode(json, random, prefKeyPrefix, nodeCount, depth + 1);
+            }
+            json.append(']');
+        }
+        json.append('}');
+    }
+
+    private SettingsAccessTree parse(String json) throws Exception {
+        return SettingsAccessTree.parse(new JsonReader(new StringReader(json)), mStore);
+    }
+
+    private static byte[] writeSnapshot(SettingsAccessTree tree) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tree.writeSnapshot(out, DATA_VERSION);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,148 @@
+package me.li2.android.tutorial.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A small JMH-style harness: warm up, then time each operation on its own, so that
+ * latency percentiles can be reported next to the throughput.
+ * Allocation is read from the HotSpot per-thread allocation counter, it's reported as 0
+ * on JVMs which don't provide it.
+ */
+
+final class BenchmarkRunner {
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    static final class Result {
+        // with fewer samples the tail percentiles are just the slowest op, they're reported as n/a
+        static final int MIN_OPS_FOR_PERCENTILES = 100;
+
+        final String mName;
+        final long mBytesPerOp;
+        final int mOps;
+        final long mTotalNanos;
+        final long mAllocatedBytes;
+        final long[] mSortedNanos;
+
+        Result(String name, long bytesPerOp, long totalNanos, long allocatedBytes, long[] nanos) {
+            mName = name;
+            mBytesPerOp = bytesPerOp;
+            mOps = nanos.length;
+            mTotalNanos = totalNanos;
+            mAllocatedBytes = allocatedBytes;
+            mSortedNanos = nanos.clone();
+            Arrays.sort(mSortedNanos);
+        }
+
+        double opsPerSecond() {
+            return mOps * 1e9 / mTotalNanos;
+        }
+
+        double megabytesPerSecond() {
+            return mBytesPerOp * opsPerSecond() / (1024 * 1024);
+        }
+
+        double meanNanos() {
+            return (double) mTotalNanos / mOps;
+        }
+
+        long percentileNanos(double percentile) {
+            int index = (int) Math.ceil(percentile / 100 * mOps) - 1;
+            return mSortedNanos[Math.max(0, Math.min(mOps - 1, index))];
+        }
+
+        boolean hasPercentiles() {
+            return mOps >= MIN_OPS_FOR_PERCENTILES;
+        }
+
+        double allocatedBytesPerOp() {
+            return (double) mAllocatedBytes / mOps;
+        }
+
+        double allocatedMegabytesPerSecond() {
+            return mAllocatedBytes * 1e9 / mTotalNanos / (1024 * 1024);
+        }
+
+        static String header() {
+            return String.format(Locale.US, "%-24s %10s %7s %10s %10s %10s %10s %12s %10s",
+                    "benchmark", "size", "ops", "MB/s", "mean ms", "p50 ms", "p99 ms", "alloc/op", "alloc MB/s");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-24s %10s %7d %10.1f %10.3f %10s %10s %12s %10.1f",
+                    mName, formatBytes(mBytesPerOp), mOps, megabytesPerSecond(),
+                    meanNanos() / 1e6, formatPercentile(50), formatPercentile(99),
+                    formatBytes((long) allocatedBytesPerOp()), allocatedMegabytesPerSecond());
+        }
+
+        private String formatPercentile(double percentile) {
+            if (!hasPercentiles()) {
+                return "n/a";
+            }
+            return String.format(Locale.US, "%.3f", percentileNanos(percentile) / 1e6);
+        }
+    }
+
+    private static final ThreadMXBean sThreadMXBean = ManagementFactory.getThreadMXBean();
+
+    private BenchmarkRunner() {
+    }
+
+    static Result measure(String name, long bytesPerOp, int warmupOps, int measureOps, Operation operation)
+            throws Exception {
+        for (int i = 0; i < warmupOps; i++) {
+            operation.run();
+        }
+
+        long[] nanos = new long[measureOps];
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < measureOps; i++) {
+            long opStart = System.nanoTime();
+            operation.run();
+            nanos[i] = System.nanoTime() - opStart;
+        }
+        long totalNanos = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        return new Result(name, bytesPerOp, totalNanos, allocated, nanos);
+    }
+
+    private static long allocatedBytes() {
+        if (sThreadMXBean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) sThreadMXBean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    static long parseBytes(String text) {
+        String value = text.trim().toLowerCase(Locale.US);
+        long unit = 1;
+        if (value.endsWith("k")) {
+            unit = 1024;
+        } else if (value.endsWith("m")) {
+            unit = 1024 * 1024;
+        } else if (value.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes >= 1024 * 1024) {
+            return String.format(Locale.US, "%.1fM", bytes / (1024.0 * 1024));
+        } else if (bytes >= 1024) {
+            return String.format(Locale.US, "%.1fK", bytes / 1024.0);
+        }
+        return bytes + "B";
+    }
+}
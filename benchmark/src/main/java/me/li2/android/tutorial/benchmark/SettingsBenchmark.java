@@ -0,0 +1,389 @@
+package me.li2.android.tutorial.benchmark;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import me.li2.android.tutorial.BasicUtils.StorageUtils.AtomicFileWriter;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.BinaryKeyValueStore;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.KeyValueStore;
+import me.li2.android.tutorial.Gson.ChangeSettingsAccess.SettingsAccessItem;
+import me.li2.android.tutorial.Gson.ChangeSettingsAccess.SettingsAccessTree;
+
+/**
+ * Scale test of the settings access tree, on synthetic settings_access Json of a given depth and fan-out.
+ * <p>
+ * SettingsAccessProvider needs a Context, so the benchmarks run the same steps as the provider
+ * method they're named after, on top of SettingsAccessTree, SettingsAccessItem and BinaryKeyValueStore.
+ * Keep them in sync when SettingsAccessProvider changes.
+ * <p>
+ * Arguments: tree shapes to run as depth x fan-out, e.g. "3x10 4x10 5x10 2x300" (the default),
+ * 5x10 is 111,111 nodes. The results are written to stdout as Json, progress to stderr.
+ */
+
+public class SettingsBenchmark {
+    private static final String[] DEFAULT_SHAPES = {"3x10", "4x10", "5x10", "2x300"};
+    // run the whole-tree benchmarks over about this many nodes, within [MIN_OPS, MAX_OPS] operations
+    private static final long NODES_PER_BENCHMARK = 5000000;
+    private static final int MIN_OPS = 5;
+    private static final int MAX_OPS = 200;
+    private static final int LEAF_OPS = 1000;
+    private static final int LEAF_COMMIT_OPS = 200;
+    private static final String DRAIN_KEY = "settings_benchmark_drain";
+
+    private final int mDepth;
+    private final int mFanOut;
+    private final File mJsonFile;
+    private final File mSnapshotFile;
+    private final File mStoreDirectory;
+    private final int mNodeCount;
+    private BinaryKeyValueStore mStore;
+
+    private SettingsBenchmark(File directory, int depth, int fanOut) {
+        mDepth = depth;
+        mFanOut = fanOut;
+        mJsonFile = new File(directory, "settings_access_" + depth + "x" + fanOut + ".json");
+        mSnapshotFile = new File(directory, "settings_access_" + depth + "x" + fanOut + ".bin");
+        mStoreDirectory = new File(directory, "store_" + depth + "x" + fanOut);
+        int nodes = 1;
+        int levelNodes = 1;
+        for (int level = 0; level < depth; level++) {
+            levelNodes *= fanOut;
+            nodes += levelNodes;
+        }
+        mNodeCount = nodes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] shapes = args.length > 0 ? args : DEFAULT_SHAPES;
+        File directory = Files.createTempDirectory("settings-benchmark").toFile();
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(System.out, "UTF-8"));
+        json.setIndent("  ");
+        try {
+            json.beginObject();
+            json.name("benchmark").value("settings_access");
+            json.name("java").value(System.getProperty("java.version"));
+            json.name("maxHeapBytes").value(Runtime.getRuntime().maxMemory());
+            json.name("runs").beginArray();
+            for (String shape : shapes) {
+                String[] parts = shape.toLowerCase(Locale.US).split("x");
+                SettingsBenchmark benchmark = new SettingsBenchmark(directory,
+                        Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+                benchmark.run(json);
+            }
+            json.endArray();
+            json.endObject();
+            json.flush();
+            System.out.println();
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private void run(JsonWriter json) throws Exception {
+        System.err.println("settings tree " + mDepth + "x" + mFanOut + ", " + mNodeCount + " nodes");
+        writeSyntheticJson(mJsonFile, mDepth, mFanOut);
+        // memory, from the heap used once the garbage is collected
+        long usedBeforeStore = usedMemory();
+        mStore = new BinaryKeyValueStore(mStoreDirectory);
+
+        int treeOps = (int) Math.max(MIN_OPS, Math.min(MAX_OPS, NODES_PER_BENCHMARK / mNodeCount));
+        int treeWarmupOps = Math.max(2, treeOps / 5);
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+
+        results.add(BenchmarkRunner.measure("parse", mJsonFile.length(), treeWarmupOps, treeOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        parseJson();
+                    }
+                }));
+
+        // the first parse saved the partial states, the defaults are saved by createAllItems() opening every level
+        drain();
+        long usedBeforeTree = usedMemory();
+        SettingsAccessTree tree = parseJson();
+        long usedAfterTree = usedMemory();
+        final SettingsAccessItem rootItem = createAllItems(tree);
+        long usedAfterItems = usedMemory();
+
+        final SettingsAccessTree snapshotTree = tree;
+        results.add(BenchmarkRunner.measure("saveSnapshot", 0, treeWarmupOps, treeOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        saveSnapshot(snapshotTree);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("loadSnapshot", mSnapshotFile.length(), treeWarmupOps, treeOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        loadSnapshot();
+                    }
+                }));
+
+        // every node changes
+        results.add(BenchmarkRunner.measure("updateItem.root", 0, treeWarmupOps, treeOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        toggle(rootItem);
+                    }
+                }));
+        drain();
+
+        final SettingsAccessItem leafItem = lastLeaf(rootItem);
+        results.add(BenchmarkRunner.measure("updateItem.leaf", 0, LEAF_OPS / 5, LEAF_OPS,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        toggle(leafItem);
+                    }
+                }));
+        drain();
+        results.add(BenchmarkRunner.measure("updateItem.leaf.commit", 0, LEAF_COMMIT_OPS / 5, LEAF_COMMIT_OPS,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        toggleAndCommit(leafItem);
+                    }
+                }));
+
+        final long logBytes = directorySize(mStoreDirectory);
+        mStore.close();
+        results.add(BenchmarkRunner.measure("getStore", logBytes, 1, MIN_OPS,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        new BinaryKeyValueStore(mStoreDirectory).close();
+                    }
+                }));
+
+        json.beginObject();
+        json.name("depth").value(mDepth);
+        json.name("fanOut").value(mFanOut);
+        json.name("nodes").value(mNodeCount);
+        json.name("jsonBytes").value(mJsonFile.length());
+        json.name("snapshotBytes").value(mSnapshotFile.length());
+        json.name("storeBytes").value(logBytes);
+        json.name("treeBytesPerNode").value((double) (usedAfterTree - usedBeforeTree) / mNodeCount);
+        json.name("storeBytesPerNode").value((double) (usedBeforeTree - usedBeforeStore) / mNodeCount);
+        json.name("itemBytesPerNode").value((double) (usedAfterItems - usedAfterTree) / mNodeCount);
+        json.name("results").beginArray();
+        for (BenchmarkRunner.Result result : results) {
+            System.err.println(result);
+            writeResult(json, result);
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    // SettingsAccessProvider.parseJson(), from a file instead of the raw resource
+    private SettingsAccessTree parseJson() throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(new FileInputStream(mJsonFile), "UTF-8"));
+        try {
+            return SettingsAccessTree.parse(reader, mStore);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // SettingsAccessProvider.saveSnapshot(SettingsAccessTree, long)
+    private void saveSnapshot(SettingsAccessTree tree) throws IOException {
+        AtomicFileWriter snapshotFile = new AtomicFileWriter(mSnapshotFile);
+        FileOutputStream out = null;
+        try {
+            out = snapshotFile.startWrite();
+            tree.writeSnapshot(out, 1);
+            snapshotFile.finishWrite(out);
+        } catch (IOException e) {
+            snapshotFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    // SettingsAccessProvider.loadSnapshot(long)
+    private SettingsAccessTree loadSnapshot() throws IOException {
+        FileChannel channel = new RandomAccessFile(mSnapshotFile, "r").getChannel();
+        ByteBuffer snapshot;
+        try {
+            snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        SettingsAccessTree tree = SettingsAccessTree.readSnapshot(snapshot, 1, mStore);
+        if (tree == null) {
+            throw new IOException("snapshot not readable");
+        }
+        return tree;
+    }
+
+    // SettingsAccessProvider.updateItem(SettingsAccessItem, boolean)
+    private void toggle(SettingsAccessItem item) {
+        KeyValueStore.Editor batch = mStore.edit();
+        updateItem(item, !item.isAdminAccessOnly(), batch);
+        batch.apply();
+    }
+
+    // SettingsAccessProvider.updateItem(SettingsAccessItem, boolean, KeyValueStore.Editor), then commit()
+    private void toggleAndCommit(SettingsAccessItem item) throws IOException {
+        KeyValueStore.Editor batch = mStore.edit();
+        updateItem(item, !item.isAdminAccessOnly(), batch);
+        if (!batch.commit()) {
+            throw new IOException("commit failed");
+        }
+    }
+
+    // SettingsAccessProvider.updateItem(SettingsAccessItem, boolean, KeyValueStore.Editor)
+    private static void updateItem(SettingsAccessItem item, boolean checked, KeyValueStore.Editor batch) {
+        item.setAdminAccessOnly(checked, batch);
+        updateParentItemsCheckedStatus(item, batch);
+        updateSubitemsCheckedStatus(item, batch);
+    }
+
+    private static void updateParentItemsCheckedStatus(SettingsAccessItem item, KeyValueStore.Editor batch) {
+        SettingsAccessItem parentItem = item.getParentItem();
+        if (parentItem != null) {
+            parentItem.setAdminAccessOnly(parentItem.areAllSubItemsChecked(), batch);
+            updateParentItemsCheckedStatus(parentItem, batch);
+        }
+    }
+
+    private static void updateSubitemsCheckedStatus(SettingsAccessItem item, KeyValueStore.Editor batch) {
+        if (item.hasSubitems()) {
+            item.setDescendantsAdminAccessOnly(item.isAdminAccessOnly(), batch);
+        }
+    }
+
+    // Wait for the applied changes to be written, the store writes them in order on one thread.
+    private void drain() {
+        mStore.edit().putBoolean(DRAIN_KEY, !mStore.getBoolean(DRAIN_KEY, false)).commit();
+    }
+
+    // the items of every node, as if the user opened them all
+    private static SettingsAccessItem createAllItems(SettingsAccessTree tree) {
+        SettingsAccessItem rootItem = tree.getItem(0);
+        createSubItems(rootItem);
+        return rootItem;
+    }
+
+    private static void createSubItems(SettingsAccessItem item) {
+        for (SettingsAccessItem subitem : item.getSubItems()) {
+            createSubItems(subitem);
+        }
+    }
+
+    private static SettingsAccessItem lastLeaf(SettingsAccessItem item) {
+        while (item.hasSubitems()) {
+            List<SettingsAccessItem> subItems = item.getSubItems();
+            item = subItems.get(subItems.size() - 1);
+        }
+        return item;
+    }
+
+    /**
+     * settings_access Json in the format of res/raw/settings_access_data.json,
+     * one node in three is admin only by default.
+     */
+    private static void writeSyntheticJson(File file, int depth, int fanOut) throws IOException {
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        JsonWriter json = new JsonWriter(out);
+        try {
+            json.beginObject();
+            json.name("settings_access");
+            writeSyntheticNode(json, "", depth, fanOut, new int[1]);
+            json.endObject();
+        } finally {
+            json.close();
+        }
+    }
+
+    private static void writeSyntheticNode(JsonWriter json, String path, int depth, int fanOut, int[] counter)
+            throws IOException {
+        int index = counter[0]++;
+        json.beginObject();
+        json.name("is_only_admin_access").value(index % 3 == 0);
+        json.name("title").value(path.isEmpty() ? "Change Settings Access" : "Setting " + path);
+        if (!path.isEmpty()) {
+            json.name("pref_key").value("pref_key_" + path);
+        }
+        json.name("has_subitems").value(depth > 0);
+        if (depth > 0) {
+            json.name("items").beginArray();
+            for (int i = 0; i < fanOut; i++) {
+                writeSyntheticNode(json, path.isEmpty() ? String.valueOf(i) : path + "_" + i, depth - 1, fanOut, counter);
+            }
+            json.endArray();
+        }
+        json.endObject();
+    }
+
+    private static void writeResult(JsonWriter json, BenchmarkRunner.Result result) throws IOException {
+        json.beginObject();
+        json.name("name").value(result.mName);
+        json.name("ops").value(result.mOps);
+        json.name("opsPerSecond").value(result.opsPerSecond());
+        json.name("meanMs").value(result.meanNanos() / 1e6);
+        // too few samples, e.g. getStore which runs MIN_OPS times: only the mean and max mean anything
+        if (result.hasPercentiles()) {
+            json.name("p50Ms").value(result.percentileNanos(50) / 1e6);
+            json.name("p99Ms").value(result.percentileNanos(99) / 1e6);
+        }
+        json.name("maxMs").value(result.percentileNanos(100) / 1e6);
+        json.name("allocatedBytesPerOp").value(result.allocatedBytesPerOp());
+        json.endObject();
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // until a collection doesn't free anything more
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            Thread.sleep(20);
+            long nowUsed = runtime.totalMemory() - runtime.freeMemory();
+            if (nowUsed >= used) {
+                break;
+            }
+            used = nowUsed;
+        }
+        return used;
+    }
+
+    private static long directorySize(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.isDirectory() ? directorySize(file) : file.length();
+            }
+        }
+        return size;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
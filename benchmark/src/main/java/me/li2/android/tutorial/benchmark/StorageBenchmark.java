@@ -0,0 +1,285 @@
+package me.li2.android.tutorial.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.li2.android.tutorial.BasicUtils.StorageUtils.AtomicFileWriter;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.MappedCharSequence;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.StorageCodec;
+import me.li2.android.tutorial.BasicUtils.StorageUtils.StorageStreams;
+
+/**
+ * Baseline of the InternalStorage read / write / copy paths, against a temp directory.
+ * <p>
+ * InternalStorage needs a Context, so each benchmark runs the same steps as the
+ * InternalStorage method it's named after, on top of the same helper classes.
+ * Keep them in sync when InternalStorage changes.
+ * <p>
+ * Arguments: file sizes to run, e.g. "1k 64k 1m 10m 100m" (the default).
+ */
+
+public class StorageBenchmark {
+    private static final String[] DEFAULT_SIZES = {"1k", "64k", "1m", "10m", "100m"};
+    // run each benchmark over about this many bytes, within [MIN_OPS, MAX_OPS] operations
+    private static final long BYTES_PER_BENCHMARK = 256L * 1024 * 1024;
+    private static final int MIN_OPS = 5;
+    private static final int MAX_OPS = 500;
+
+    private final File mDirectory;
+
+    private StorageBenchmark(File directory) {
+        mDirectory = directory;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = args.length > 0 ? args : DEFAULT_SIZES;
+        File directory = Files.createTempDirectory("storage-benchmark").toFile();
+        StorageBenchmark benchmark = new StorageBenchmark(directory);
+        System.out.println("directory " + directory);
+        System.out.println(BenchmarkRunner.Result.header());
+        try {
+            for (String size : sizes) {
+                for (BenchmarkRunner.Result result : benchmark.run((int) BenchmarkRunner.parseBytes(size))) {
+                    System.out.println(result);
+                }
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    private List<BenchmarkRunner.Result> run(int size) throws Exception {
+        final String content = createContent(size);
+        final File source = new File(mDirectory, "source-" + size);
+        final File target = new File(mDirectory, "target-" + size);
+        final File compressed = new File(mDirectory, "compressed-" + size);
+        writeFile(source, content, StorageCodec.NONE);
+        writeFile(compressed, content, StorageCodec.GZIP);
+
+        int measureOps = (int) Math.max(MIN_OPS, Math.min(MAX_OPS, BYTES_PER_BENCHMARK / size));
+        int warmupOps = Math.max(2, measureOps / 5);
+
+        List<BenchmarkRunner.Result> results = new ArrayList<>();
+        results.add(BenchmarkRunner.measure("writeFile", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        writeFile(target, content, StorageCodec.NONE);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("writeFile.atomic", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        writeFileAtomic(target, content);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("writeFile.gzip", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        writeFile(target, content, StorageCodec.GZIP);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("readTextFile", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        readTextFile(source);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("readTextFile.gzip", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        readTextFile(compressed);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("readFile.channel", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        readFile(source);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("mapTextFile.scan", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        scanMappedTextFile(source);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("copyFile.transferTo", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        copyFile(source, target);
+                    }
+                }));
+        results.add(BenchmarkRunner.measure("copyRawToFile", size, warmupOps, measureOps,
+                new BenchmarkRunner.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        copyStream(source, target);
+                    }
+                }));
+        return results;
+    }
+
+    // InternalStorage.writeFile(String, String, String)
+    private static void writeFile(File file, String content, StorageCodec codec) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            Writer writer = new OutputStreamWriter(codec.encode(StorageStreams.nonClosing(out)));
+            StorageStreams.write(writer, content);
+            writer.close();
+        } finally {
+            out.close();
+        }
+    }
+
+    // InternalStorage.writeFile(String, String, String) with setAtomicWrite(true)
+    private static void writeFileAtomic(File file, String content) throws IOException {
+        AtomicFileWriter atomicFile = new AtomicFileWriter(file);
+        FileOutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            Writer writer = new OutputStreamWriter(StorageStreams.nonClosing(out));
+            StorageStreams.write(writer, content);
+            writer.close();
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+    }
+
+    // InternalStorage.readTextFile(String, String)
+    private static String readTextFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            BufferedReader bufferedReader = new BufferedReader(
+                    new InputStreamReader(StorageCodec.decode(inputStream)));
+            StringBuilder stringBuilder = new StringBuilder();
+            String receiveString;
+            while ((receiveString = bufferedReader.readLine()) != null) {
+                stringBuilder.append(receiveString);
+            }
+            return stringBuilder.toString();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    // InternalStorage.readFile(String, String, WritableByteChannel) into a channel which drops the bytes
+    private static long readFile(File file) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            return StorageStreams.copy(channel, new NullChannel());
+        } finally {
+            channel.close();
+        }
+    }
+
+    // InternalStorage.mapTextFile(String, String), then read every char
+    private static long scanMappedTextFile(File file) throws IOException {
+        FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+        MappedByteBuffer buffer;
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        CharSequence text = MappedCharSequence.wrap(buffer, Charset.defaultCharset());
+        long lines = 0;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    // InternalStorage.copyFile(File, String, String)
+    private static long copyFile(File source, File target) throws IOException {
+        FileChannel in = new FileInputStream(source).getChannel();
+        FileChannel out = new FileOutputStream(target).getChannel();
+        try {
+            return StorageStreams.copy(in, out);
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    // InternalStorage.copyRawToFile(int, String, String), a raw resource is a plain InputStream
+    private static long copyStream(File source, File target) throws IOException {
+        InputStream in = new FileInputStream(source);
+        OutputStream out = new FileOutputStream(target);
+        try {
+            return StorageStreams.copy(in, out, in.available());
+        } finally {
+            in.close();
+            out.close();
+        }
+    }
+
+    // JSON-like ASCII lines, the kind of text the app stores
+    private static String createContent(int size) {
+        StringBuilder builder = new StringBuilder(size);
+        int line = 0;
+        while (builder.length() < size) {
+            builder.append("{\"id\":").append(line++).append(",\"title\":\"settings item\",\"checked\":true}\n");
+        }
+        builder.setLength(size);
+        return builder.toString();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static class NullChannel implements WritableByteChannel {
+        private boolean mOpen = true;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            src.position(src.limit());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mOpen;
+        }
+
+        @Override
+        public void close() {
+            mOpen = false;
+        }
+    }
+}